@@ -0,0 +1,126 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cleo.labs.connector.batchapi.processor.ApiClientFactory;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.OutputFormat;
+
+/**
+ * The PUT path: request bytes written into a {@link BatchAPIProcessor},
+ * then {@code close()} parses the YAML or JSON requests, or expands the CSV
+ * against a built-in template, and formats the results.  Requests are run
+ * as {@code preview} against a stub {@link ApiClientFactory}, so no Harmony
+ * server is involved.
+ * <p>
+ * The {@code template} only applies to CSV input: YAML and JSON inputs are
+ * user requests. With a {@code schedulerConcurrency} above 0 the file is
+ * processed in slices admitted by the {@link BatchScheduler}, and their
+ * results merged.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchAPIProcessorBenchmark {
+
+    private static final ApiClientFactory STUB = profile -> {
+        throw new Exception("stub: no Harmony server for profile "+profile);
+    };
+
+    @Param({"user", "as2", "sftp", "ftp"})
+    public SyntheticRequests.Template template;
+
+    @Param({"100", "10000"})
+    public int rows;
+
+    @Param({"8", "128"})
+    public int width;
+
+    @Param({"csv", "yaml", "json"})
+    public String inputFormat;
+
+    @Param({"yaml", "json", "csv"})
+    public OutputFormat outputFormat;
+
+    @Param({"0", "4"})
+    public int schedulerConcurrency;
+
+    private Path workingDirectory;
+    private StubConnectorConfig config;
+    private byte[] request;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        workingDirectory = Files.createTempDirectory("batchapi-bench");
+        config = new StubConnectorConfig(workingDirectory)
+                .defaultOperation(Operation.preview)
+                .outputFormat(outputFormat)
+                .schedulerConcurrency(schedulerConcurrency);
+        if (outputFormat == OutputFormat.csv) {
+            config.outputTemplate(SyntheticRequests.OUTPUT_TEMPLATE);
+        }
+        String content;
+        if (inputFormat.equals("csv")) {
+            content = SyntheticRequests.csv(template, rows, width);
+        } else if (inputFormat.equals("yaml")) {
+            content = SyntheticRequests.yaml(rows, width);
+        } else {
+            content = ResultWriter.JSON.writeValueAsString(ActionRunner.requests(SyntheticRequests.yaml(rows, width)));
+        }
+        request = content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Invocation)
+    public void clean() throws IOException {
+        try (Stream<Path> files = Files.list(workingDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        clean();
+        Files.delete(workingDirectory);
+    }
+
+    @Benchmark
+    public long put() throws IOException {
+        Path destination = workingDirectory.resolve("bench."+inputFormat);
+        BatchAPIProcessor processor = new BatchAPIProcessor(config, destination, Collections.emptyMap(), null)
+                .apiClientFactory(STUB);
+        processor.write(request);
+        processor.close();
+        long size = 0;
+        try (Stream<Path> files = Files.list(workingDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                size += Files.size(file);
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,73 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+/**
+ * Decoding of the connector's stored property values: the Profiles table
+ * JSON and imported template files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigDecodingBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int profiles;
+
+    @Param({"1024", "1048576"})
+    public int templateBytes;
+
+    private String profileTable;
+    private String importedTemplate;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Profile[] table = new Profile[profiles];
+        for (int i = 0; i < profiles; i++) {
+            table[i] = new Profile()
+                    .enabled(true)
+                    .setProfileName(i % 2 == 0 ? "default" : "node"+i)
+                    .url("https://harmony"+i+".example.com:6080")
+                    .user("administrator")
+                    .password("vlenc:"+Base64.getEncoder().encodeToString(("secret"+i).getBytes()));
+        }
+        profileTable = new Gson().toJson(table);
+
+        byte[] content = new byte[templateBytes];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (' ' + ThreadLocalRandom.current().nextInt(95));
+        }
+        importedTemplate = "Imported on 2020/01/01 00:00:00"+BinaryConfigFileImport.DELIMITER+
+                Base64.getEncoder().encodeToString(content);
+    }
+
+    @Benchmark
+    public Profile[] toProfiles() {
+        return ProfileTableProperty.toProfiles(profileTable);
+    }
+
+    @Benchmark
+    public String templateValueString() {
+        return BinaryConfigFileImport.valueString(importedTemplate);
+    }
+}
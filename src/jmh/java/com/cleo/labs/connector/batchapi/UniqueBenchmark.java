@@ -0,0 +1,63 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Result file name selection in a working directory that already holds
+ * {@code existing} results for the same request file name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UniqueBenchmark {
+
+    @Param({"0", "100", "5000"})
+    public int existing;
+
+    private Path workingDirectory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        workingDirectory = Files.createTempDirectory("batchapi-bench");
+        for (int i = 0; i < existing; i++) {
+            String name = i == 0 ? "request" : "request("+i+")";
+            Files.createFile(workingDirectory.resolve(name+".yaml"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        try (Stream<Path> files = Files.list(workingDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(workingDirectory);
+    }
+
+    @Benchmark
+    public String unique() {
+        return BatchAPIProcessor.unique(workingDirectory, "request", ".yaml", null, ".trace.json");
+    }
+}
@@ -0,0 +1,344 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import com.cleo.connector.api.helper.Logger;
+import com.cleo.labs.connector.batchapi.processor.ApiClient;
+import com.cleo.labs.connector.batchapi.processor.ApiClientFactory;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Strings;
+
+/**
+ * Runs the actions of a request file made up entirely of {@code run}
+ * requests concurrently, instead of one at a time.
+ * <p>
+ * Requests that select actions by {@code actionfilter}, or by {@code action}
+ * without a {@code username} or {@code connection}, are first expanded with
+ * a {@code list} of the same request into one {@code run} request per
+ * matching action. Each action is then run as its own single request
+ * batch, at most {@code concurrency} at a time per profile, and its results
+ * (including the action {@code messages}) are written to the result file as
+ * soon as it completes. Actions still running at the deadline are
+ * abandoned&mdash;they continue on the Harmony server, but are reported as
+ * errors and no longer hold up the batch. Each thread of a run reuses one
+ * {@code BatchProcessor}, and one {@link ApiClient} per profile, for all the
+ * actions it runs.
+ */
+public class ActionRunner {
+
+    private static final String[] IDENTITY = {"username", "authenticator", "connection", "action"};
+    private static final String[] OPTIONS = {"profile", "timeout", "messagesCount"};
+
+    private final ApiClientFactory factory;
+    private final Function<ApiClientFactory,BatchProcessor> processors;
+    private final Map<Thread,BatchProcessor> threads;
+    private final int concurrency;
+    private final long deadline;
+    private final Logger logger;
+    private final Tracer tracer;
+    private BatchScheduler.Flow flow;
+
+    /**
+     * Hands out one {@link ApiClient} per profile, for the actions run by
+     * one thread.
+     */
+    private static class Clients implements ApiClientFactory {
+        private final ApiClientFactory factory;
+        private final Map<String,ApiClient> clients = new HashMap<>();
+
+        private Clients(ApiClientFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public ApiClient getApiClient(String profileName) throws Exception {
+            String name = Strings.nullToEmpty(profileName);
+            ApiClient client = clients.get(name);
+            if (client == null) {
+                client = factory.getApiClient(profileName);
+                clients.put(name, client);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * @param factory the factory for the {@code ApiClient}s of the batch
+     * @param processors returns a new, configured {@code BatchProcessor} using a factory
+     * @param concurrency the maximum number of actions to run at once per profile
+     * @param deadline the overall deadline in seconds, or {@code 0} for none
+     * @param logger the connector logger (may be {@code null})
+     * @param tracer the tracer for the request file
+     */
+    public ActionRunner(ApiClientFactory factory, Function<ApiClientFactory,BatchProcessor> processors,
+            int concurrency, int deadline, Logger logger, Tracer tracer) {
+        this.factory = factory;
+        this.processors = processors;
+        this.threads = new ConcurrentHashMap<>();
+        this.concurrency = Math.max(1, concurrency);
+        this.deadline = TimeUnit.SECONDS.toMillis(Math.max(0, deadline));
+        this.logger = logger;
+        this.tracer = tracer;
+        this.flow = null;
+    }
+
+    /**
+     * Admits each action (and each expansion) through a {@link BatchScheduler}
+     * flow, in addition to the per profile concurrency.
+     * @param flow the batch's flow
+     * @return {@code this} for fluent style
+     */
+    public ActionRunner flow(BatchScheduler.Flow flow) {
+        this.flow = flow;
+        return this;
+    }
+
+    private void debug(String message) {
+        if (logger != null) {
+            logger.debug(message);
+        }
+    }
+
+    /**
+     * Parses a YAML or JSON request file into its list of requests.
+     * @param content the request file content
+     * @return the requests, or {@code null} if the content is not a YAML or
+     *         JSON collection of requests
+     */
+    public static List<ObjectNode> requests(String content) {
+        List<ObjectNode> requests = new ArrayList<>();
+        try (MappingIterator<JsonNode> documents = ResultWriter.YAML.readerFor(JsonNode.class).readValues(content)) {
+            while (documents.hasNext()) {
+                JsonNode document = documents.next();
+                if (document == null || document.isNull()) {
+                    continue;
+                }
+                for (JsonNode request : document.isArray() ? document : ResultWriter.YAML.createArrayNode().add(document)) {
+                    if (!request.isObject()) {
+                        return null;
+                    }
+                    requests.add((ObjectNode) request);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        return requests;
+    }
+
+    /**
+     * Returns {@code true} if every request is a {@code run}, explicitly or
+     * by default.
+     */
+    public static boolean eligible(List<ObjectNode> requests, Operation defaultOperation) {
+        if (requests == null || requests.isEmpty()) {
+            return false;
+        }
+        String defaultName = defaultOperation == null ? "" : defaultOperation.name();
+        for (ObjectNode request : requests) {
+            if (!request.path("operation").asText(defaultName).equals(Operation.run.name())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean needsExpansion(ObjectNode request) {
+        return request.has("actionfilter") ||
+                (request.has("action") && !request.has("username") && !request.has("connection"));
+    }
+
+    private static String describe(ObjectNode request) {
+        StringBuilder sb = new StringBuilder("action ").append(request.path("action").asText("?"));
+        if (request.has("username")) {
+            sb.append(" on user ").append(request.path("username").asText());
+        } else if (request.has("connection")) {
+            sb.append(" on connection ").append(request.path("connection").asText());
+        }
+        return sb.toString();
+    }
+
+    private static ObjectNode error(ObjectNode request, String message) {
+        ObjectNode error = ResultWriter.YAML.createObjectNode();
+        error.putObject("result").put("status", "error").put("message", message);
+        for (String field : IDENTITY) {
+            if (request.has(field)) {
+                error.set(field, request.get(field));
+            }
+        }
+        return error;
+    }
+
+    private String process(ObjectNode request) throws IOException, InterruptedException {
+        String content = ResultWriter.YAML.writeValueAsString(request);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BatchScheduler.Permit permit = flow == null ? BatchScheduler.Permit.NONE : flow.admit(content.length());
+                PrintStream out = new PrintStream(bytes, false, "UTF-8")) {
+            threads.computeIfAbsent(Thread.currentThread(), t -> processors.apply(new Clients(factory)))
+                .processFile("run.yaml", content, out);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Expands a request selecting actions by filter into one {@code run}
+     * request per matching action, based on a {@code list} of the request.
+     * If the list fails or its results do not identify the actions, the
+     * original request is returned to be run as is.
+     */
+    private List<ObjectNode> expand(ObjectNode request) {
+        List<ObjectNode> runs = new ArrayList<>();
+        try (Tracer.Span span = tracer.span("batch", "expand")) {
+            ObjectNode list = request.deepCopy();
+            list.put("operation", Operation.list.name());
+            JsonNode results = ResultWriter.YAML.readTree(process(list));
+            for (JsonNode result : results == null ? ResultWriter.YAML.createArrayNode() : results) {
+                String name = result.path("action").asText(result.path("alias").asText(""));
+                if (!result.path("result").path("status").asText().equals("success") || name.isEmpty() ||
+                        !(result.has("username") || result.has("connection"))) {
+                    runs.clear();
+                    break;
+                }
+                ObjectNode run = ResultWriter.YAML.createObjectNode();
+                run.put("operation", Operation.run.name());
+                for (String field : IDENTITY) {
+                    if (result.has(field)) {
+                        run.set(field, result.get(field));
+                    }
+                }
+                run.put("action", name);
+                for (String field : OPTIONS) {
+                    if (request.has(field)) {
+                        run.set(field, request.get(field));
+                    }
+                }
+                runs.add(run);
+            }
+            span.arg("actions", runs.size());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            debug("unable to expand run request: "+e.getMessage());
+            runs.clear();
+        }
+        if (runs.isEmpty()) {
+            runs.add(request);
+        }
+        return runs;
+    }
+
+    /**
+     * Runs all the actions selected by {@code requests}, appending the
+     * results of each to {@code writer} as it completes.
+     * @param requests the {@code run} requests
+     * @param writer the result file
+     * @throws IOException if the results can not be written
+     */
+    public void run(List<ObjectNode> requests, ResultWriter writer) throws IOException {
+        List<ObjectNode> runs = new ArrayList<>();
+        for (ObjectNode request : requests) {
+            if (needsExpansion(request)) {
+                runs.addAll(expand(request));
+            } else {
+                runs.add(request);
+            }
+        }
+        debug(String.format("running %d actions, %d at a time per profile", runs.size(), concurrency));
+
+        Map<String,Semaphore> profiles = new HashMap<>();
+        for (ObjectNode run : runs) {
+            profiles.computeIfAbsent(run.path("profile").asText(""), p -> new Semaphore(concurrency));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(runs.size(), concurrency * profiles.size()),
+                r -> {
+                    Thread t = new Thread(r, "batchapi-run");
+                    t.setDaemon(true);
+                    return t;
+                });
+        CountDownLatch remaining = new CountDownLatch(runs.size());
+        List<AtomicBoolean> reported = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (ObjectNode run : runs) {
+                AtomicBoolean done = new AtomicBoolean(false);
+                Semaphore permits = profiles.get(run.path("profile").asText(""));
+                reported.add(done);
+                futures.add(executor.submit(() -> {
+                    try {
+                        permits.acquire();
+                        try (Tracer.Span span = tracer.span("batch", "run")) {
+                            span.arg("action", describe(run));
+                            try {
+                                String output = process(run);
+                                if (done.compareAndSet(false, true)) {
+                                    writer.append(output);
+                                }
+                            } catch (Exception e) {
+                                if (done.compareAndSet(false, true)) {
+                                    writer.append(ResultWriter.YAML.createArrayNode().add(error(run, e.getMessage())));
+                                }
+                            }
+                        } finally {
+                            permits.release();
+                        }
+                    } catch (InterruptedException e) {
+                        // abandoned at the deadline
+                    } catch (IOException e) {
+                        debug("unable to write results for "+describe(run)+": "+e.getMessage());
+                    } finally {
+                        remaining.countDown();
+                    }
+                    return null;
+                }));
+            }
+
+            boolean finished;
+            try {
+                if (deadline > 0) {
+                    finished = remaining.await(deadline, TimeUnit.MILLISECONDS);
+                } else {
+                    remaining.await();
+                    finished = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                finished = false;
+            }
+            if (!finished) {
+                ArrayNode abandoned = ResultWriter.YAML.createArrayNode();
+                for (int i = 0; i < runs.size(); i++) {
+                    if (reported.get(i).compareAndSet(false, true)) {
+                        futures.get(i).cancel(true);
+                        abandoned.add(error(runs.get(i), String.format(
+                                "%s not completed within the %d second deadline", describe(runs.get(i)),
+                                TimeUnit.MILLISECONDS.toSeconds(deadline))));
+                    }
+                }
+                debug(String.format("%d actions abandoned at the deadline", abandoned.size()));
+                writer.append(abandoned);
+            }
+        } finally {
+            executor.shutdownNow();
+            threads.clear();
+        }
+    }
+}
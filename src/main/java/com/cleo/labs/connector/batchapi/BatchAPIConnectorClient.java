@@ -41,6 +41,7 @@ public class BatchAPIConnectorClient extends ConnectorClient {
 
     public BatchAPIConnectorClient(BatchAPIConnectorSchema schema) {
         this.config = new BatchAPIConnectorConfig(this, schema);
+        BatchAPIProcessor.initialize(this.config, () -> logger);
     }
 
     @Command(name = PUT, options = { Delete, Unique })
@@ -51,6 +52,7 @@ public class BatchAPIConnectorClient extends ConnectorClient {
         logger.debug(String.format("PUT local '%s' to remote '%s'", source.getPath(), destination));
 
         try {
+            BatchAPIConnectorConfig config = this.config.snapshot();
             BatchAPIProcessor processor = new BatchAPIProcessor(
                     config,
                     config.getWorkingDirectory().resolve(destination),
@@ -71,6 +73,7 @@ public class BatchAPIConnectorClient extends ConnectorClient {
         logger.debug(String.format("GET remote '%s' to local '%s'", source, destination.getPath()));
 
         try {
+            BatchAPIConnectorConfig config = this.config.snapshot();
             Path path = config.getWorkingDirectory().resolve(source);
             if (!path.toFile().exists()) {
               throw new ConnectorException(String.format("'%s' does not exist or is not accessible", path.toString()),
@@ -90,6 +93,7 @@ public class BatchAPIConnectorClient extends ConnectorClient {
         logger.debug(String.format("DELETE '%s'", relativepath));
 
         try {
+            BatchAPIConnectorConfig config = this.config.snapshot();
             Path path = config.getWorkingDirectory().resolve(relativepath);
             File file = path.toFile();
             if (!file.exists()) {
@@ -114,6 +118,7 @@ public class BatchAPIConnectorClient extends ConnectorClient {
         logger.debug(String.format("RENAME '%s' '%s'", relativesource, relativedestination));
 
         try {
+            BatchAPIConnectorConfig config = this.config.snapshot();
             Path path = config.getWorkingDirectory().resolve(relativesource);
             File file = path.toFile();
             if (!file.exists()) {
@@ -135,11 +140,17 @@ public class BatchAPIConnectorClient extends ConnectorClient {
         logger.debug(String.format("DIR '%s'", relativepath));
 
         try {
+            BatchAPIConnectorConfig config = this.config.snapshot();
             Path path = config.getWorkingDirectory().resolve(relativepath);
+            boolean inbox = config.getWatchInbox() &&
+                    path.normalize().equals(config.getWorkingDirectory().normalize());
             List<Entry> result = new ArrayList<>();
             File[] files = path.toFile().listFiles();
             if (files != null) {
                 for (File file : files) {
+                    if (file.getName().startsWith(".") || inbox && file.getName().equals(InboxWatcher.INBOX)) {
+                        continue; // chunks, claimed files and the inbox are not results
+                    }
                     Entry entry = new Entry(file.isFile() ? Type.file : Type.dir);
                     entry.setPath(Paths.get(relativepath, file.getName()).toString());
                     entry.setDate(Attributes.toLocalDateTime(file.lastModified()));
@@ -164,7 +175,7 @@ public class BatchAPIConnectorClient extends ConnectorClient {
     @Command(name = ATTR)
     public BasicFileAttributeView getAttributes(String path) throws ConnectorException, IOException {
         try {
-            Path rootPath = config.getWorkingDirectory();
+            Path rootPath = this.config.snapshot().getWorkingDirectory();
             Path fullPath = rootPath.resolve(path);
             File file = fullPath.toFile();
             if (file.exists()) {
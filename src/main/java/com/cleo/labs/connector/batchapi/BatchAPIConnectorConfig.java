@@ -2,6 +2,10 @@ package com.cleo.labs.connector.batchapi;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import com.cleo.connector.api.interfaces.ConnectorBase;
 import com.cleo.connector.api.property.ConnectorPropertyException;
@@ -10,8 +14,13 @@ import com.cleo.labs.connector.batchapi.processor.BatchProcessor.OutputFormat;
 import com.cleo.lexicom.beans.MacroReplacement;
 import com.cleo.util.MacroUtil;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 public class BatchAPIConnectorConfig {
+    private static final Cache<List<String>,Object> DECODED = CacheBuilder.newBuilder().maximumSize(32).build();
+
     private ConnectorBase client;
     private BatchAPIConnectorSchema schema;
 
@@ -20,19 +29,41 @@ public class BatchAPIConnectorConfig {
         this.schema = schema;
     }
 
-    public Path getWorkingDirectory() throws ConnectorPropertyException {
+    /**
+     * Returns a snapshot of the configuration for the duration of a command.
+     * Each property is read from the live configuration at most once, when
+     * first used, and then answers the same value (or rethrows the same
+     * exception) for the life of the snapshot. The decoded forms of the
+     * expensive properties (the working directory macros, the profile table
+     * and the templates) are cached by raw value, so they are decoded again
+     * only when the property changes.
+     * @return the snapshot
+     */
+    public BatchAPIConnectorConfig snapshot() {
+        return new Snapshot(this);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T decode(String property, String value, Callable<T> decoder) throws ConnectorPropertyException {
         try {
-            String value = schema.workingDirectory.getValue(client);
-            String macros = new MacroReplacement().replaceMacrosInString(value, MacroUtil.DIRS_ONLY, true);
-            return Paths.get(macros);
-        } catch (Exception e) {
+            return (T) DECODED.get(Arrays.asList(property, value), decoder);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new ConnectorPropertyException(e.getCause());
+        } catch (RuntimeException e) {
             throw new ConnectorPropertyException(e);
         }
     }
 
+    public Path getWorkingDirectory() throws ConnectorPropertyException {
+        String value = schema.workingDirectory.getValue(client);
+        return decode("workingDirectory", value, () ->
+                Paths.get(new MacroReplacement().replaceMacrosInString(value, MacroUtil.DIRS_ONLY, true)));
+    }
+
     public Profile[] getProfiles() throws ConnectorPropertyException {
         String value = schema.profiles.getValue(client);
-        return ProfileTableProperty.toProfiles(value);
+        Profile[] profiles = decode("profiles", value, () -> ProfileTableProperty.toProfiles(value));
+        return profiles.clone();
     }
 
     public boolean getGeneratePasswords() throws ConnectorPropertyException {
@@ -52,7 +83,8 @@ public class BatchAPIConnectorConfig {
     }
 
     public String getTemplate() throws ConnectorPropertyException {
-        return BinaryConfigFileImport.valueString(schema.template.getValue(client));
+        String value = schema.template.getValue(client);
+        return decode("template", value, () -> BinaryConfigFileImport.valueString(value));
     }
 
     public OutputFormat getOutputFormat() throws ConnectorPropertyException {
@@ -64,10 +96,268 @@ public class BatchAPIConnectorConfig {
     }
 
     public String getOutputTemplate() throws ConnectorPropertyException {
-        return BinaryConfigFileImport.valueString(schema.outputTemplate.getValue(client));
+        String value = schema.outputTemplate.getValue(client);
+        return decode("outputTemplate", value, () -> BinaryConfigFileImport.valueString(value));
+    }
+
+    public int getTraceSamplePercent() throws ConnectorPropertyException {
+        Integer percent = schema.traceSamplePercent.getValue(client);
+        return percent == null ? 0 : Math.max(0, Math.min(100, percent));
+    }
+
+    public Compression.Format getOutputCompression() throws ConnectorPropertyException {
+        String compression = schema.outputCompression.getValue(client).trim();
+        return compression.equals(Compression.Format.gzip.name()) ? Compression.Format.gzip : Compression.Format.none;
+    }
+
+    public int getArchiveConcurrency() throws ConnectorPropertyException {
+        Integer concurrency = schema.archiveConcurrency.getValue(client);
+        return concurrency == null ? 1 : Math.max(1, concurrency);
+    }
+
+    public int getClusterChunkSize() throws ConnectorPropertyException {
+        Integer size = schema.clusterChunkSize.getValue(client);
+        return size == null ? 0 : Math.max(0, size);
+    }
+
+    public boolean getWatchInbox() throws ConnectorPropertyException {
+        return schema.watchInbox.getValue(client);
+    }
+
+    public CertificateCache.Scope getCertificateCache() throws ConnectorPropertyException {
+        String scope = schema.certificateCache.getValue(client).trim();
+        if (!Strings.isNullOrEmpty(scope)) {
+            return CertificateCache.Scope.valueOf(scope);
+        }
+        return CertificateCache.Scope.batch;
+    }
+
+    public boolean getProfileFailover() throws ConnectorPropertyException {
+        return schema.profileFailover.getValue(client);
+    }
+
+    public int getRunConcurrency() throws ConnectorPropertyException {
+        Integer concurrency = schema.runConcurrency.getValue(client);
+        return concurrency == null ? 1 : Math.max(1, concurrency);
+    }
+
+    public int getRunDeadline() throws ConnectorPropertyException {
+        Integer deadline = schema.runDeadline.getValue(client);
+        return deadline == null ? 0 : Math.max(0, deadline);
+    }
+
+    public int getSchedulerConcurrency() throws ConnectorPropertyException {
+        Integer concurrency = schema.schedulerConcurrency.getValue(client);
+        return concurrency == null ? 0 : Math.max(0, concurrency);
+    }
+
+    public boolean getSchedulingByFolder() throws ConnectorPropertyException {
+        return "folder".equals(schema.schedulingFlow.getValue(client).trim());
+    }
+
+    public int getSchedulingWeight() throws ConnectorPropertyException {
+        Integer weight = schema.schedulingWeight.getValue(client);
+        return weight == null ? 1 : Math.max(1, weight);
     }
 
     public boolean getEnableDebug() throws ConnectorPropertyException {
         return schema.enableDebug.getValue(client);
     }
+
+    private interface Getter<T> {
+        T get() throws ConnectorPropertyException;
+    }
+
+    /**
+     * A property value, read on first use, or the exception thrown when
+     * reading it.
+     */
+    private static class Value<T> {
+        private Getter<T> getter;
+        private T value;
+        private ConnectorPropertyException error;
+
+        private Value(Getter<T> getter) {
+            this.getter = getter;
+        }
+
+        private synchronized T get() throws ConnectorPropertyException {
+            if (getter != null) {
+                try {
+                    value = getter.get();
+                } catch (ConnectorPropertyException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new ConnectorPropertyException(e);
+                }
+                getter = null;
+            }
+            if (error != null) {
+                throw error;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * The values of the properties, each read once from the live configuration.
+     */
+    private static class Snapshot extends BatchAPIConnectorConfig {
+        private final Value<Path> workingDirectory;
+        private final Value<Profile[]> profiles;
+        private final Value<Boolean> generatePasswords;
+        private final Value<String> exportPassword;
+        private final Value<Operation> defaultOperation;
+        private final Value<String> template;
+        private final Value<OutputFormat> outputFormat;
+        private final Value<String> outputTemplate;
+        private final Value<Integer> traceSamplePercent;
+        private final Value<Compression.Format> outputCompression;
+        private final Value<Integer> archiveConcurrency;
+        private final Value<Integer> clusterChunkSize;
+        private final Value<Boolean> watchInbox;
+        private final Value<CertificateCache.Scope> certificateCache;
+        private final Value<Boolean> profileFailover;
+        private final Value<Integer> runConcurrency;
+        private final Value<Integer> runDeadline;
+        private final Value<Integer> schedulerConcurrency;
+        private final Value<Boolean> schedulingByFolder;
+        private final Value<Integer> schedulingWeight;
+        private final Value<Boolean> enableDebug;
+
+        private Snapshot(BatchAPIConnectorConfig live) {
+            super(null, null);
+            this.workingDirectory = new Value<>(live::getWorkingDirectory);
+            this.profiles = new Value<>(live::getProfiles);
+            this.generatePasswords = new Value<>(live::getGeneratePasswords);
+            this.exportPassword = new Value<>(live::getExportPassword);
+            this.defaultOperation = new Value<>(live::getDefaultOperation);
+            this.template = new Value<>(live::getTemplate);
+            this.outputFormat = new Value<>(live::getOutputFormat);
+            this.outputTemplate = new Value<>(live::getOutputTemplate);
+            this.traceSamplePercent = new Value<>(live::getTraceSamplePercent);
+            this.outputCompression = new Value<>(live::getOutputCompression);
+            this.archiveConcurrency = new Value<>(live::getArchiveConcurrency);
+            this.clusterChunkSize = new Value<>(live::getClusterChunkSize);
+            this.watchInbox = new Value<>(live::getWatchInbox);
+            this.certificateCache = new Value<>(live::getCertificateCache);
+            this.profileFailover = new Value<>(live::getProfileFailover);
+            this.runConcurrency = new Value<>(live::getRunConcurrency);
+            this.runDeadline = new Value<>(live::getRunDeadline);
+            this.schedulerConcurrency = new Value<>(live::getSchedulerConcurrency);
+            this.schedulingByFolder = new Value<>(live::getSchedulingByFolder);
+            this.schedulingWeight = new Value<>(live::getSchedulingWeight);
+            this.enableDebug = new Value<>(live::getEnableDebug);
+        }
+
+        @Override
+        public BatchAPIConnectorConfig snapshot() {
+            return this;
+        }
+
+        @Override
+        public Path getWorkingDirectory() throws ConnectorPropertyException {
+            return workingDirectory.get();
+        }
+
+        @Override
+        public Profile[] getProfiles() throws ConnectorPropertyException {
+            return profiles.get().clone();
+        }
+
+        @Override
+        public boolean getGeneratePasswords() throws ConnectorPropertyException {
+            return generatePasswords.get();
+        }
+
+        @Override
+        public String getExportPassword() throws ConnectorPropertyException {
+            return exportPassword.get();
+        }
+
+        @Override
+        public Operation getDefaultOperation() throws ConnectorPropertyException {
+            return defaultOperation.get();
+        }
+
+        @Override
+        public String getTemplate() throws ConnectorPropertyException {
+            return template.get();
+        }
+
+        @Override
+        public OutputFormat getOutputFormat() throws ConnectorPropertyException {
+            return outputFormat.get();
+        }
+
+        @Override
+        public String getOutputTemplate() throws ConnectorPropertyException {
+            return outputTemplate.get();
+        }
+
+        @Override
+        public int getTraceSamplePercent() throws ConnectorPropertyException {
+            return traceSamplePercent.get();
+        }
+
+        @Override
+        public Compression.Format getOutputCompression() throws ConnectorPropertyException {
+            return outputCompression.get();
+        }
+
+        @Override
+        public int getArchiveConcurrency() throws ConnectorPropertyException {
+            return archiveConcurrency.get();
+        }
+
+        @Override
+        public int getClusterChunkSize() throws ConnectorPropertyException {
+            return clusterChunkSize.get();
+        }
+
+        @Override
+        public boolean getWatchInbox() throws ConnectorPropertyException {
+            return watchInbox.get();
+        }
+
+        @Override
+        public CertificateCache.Scope getCertificateCache() throws ConnectorPropertyException {
+            return certificateCache.get();
+        }
+
+        @Override
+        public boolean getProfileFailover() throws ConnectorPropertyException {
+            return profileFailover.get();
+        }
+
+        @Override
+        public int getRunConcurrency() throws ConnectorPropertyException {
+            return runConcurrency.get();
+        }
+
+        @Override
+        public int getRunDeadline() throws ConnectorPropertyException {
+            return runDeadline.get();
+        }
+
+        @Override
+        public int getSchedulerConcurrency() throws ConnectorPropertyException {
+            return schedulerConcurrency.get();
+        }
+
+        @Override
+        public boolean getSchedulingByFolder() throws ConnectorPropertyException {
+            return schedulingByFolder.get();
+        }
+
+        @Override
+        public int getSchedulingWeight() throws ConnectorPropertyException {
+            return schedulingWeight.get();
+        }
+
+        @Override
+        public boolean getEnableDebug() throws ConnectorPropertyException {
+            return enableDebug.get();
+        }
+    }
 }
@@ -99,6 +99,106 @@ public class BatchAPIConnectorSchema extends ConnectorConfig {
             .setRequired(false)
             .build();
 
+    @Property
+    final IConnectorProperty<Integer> traceSamplePercent = new PropertyBuilder<>("TraceSamplePercent", 0)
+            .setRequired(false)
+            .setDescription("The percentage of request files to trace, from 0 (disabled) to 100. "+
+                            "Traces are written next to the result files as .trace.json files.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> outputCompression = new PropertyBuilder<>("OutputCompression", "")
+            .setRequired(false)
+            .setDescription("Compress result files as they are written (none by default).")
+            .addPossibleValues("", Compression.Format.gzip.name())
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> archiveConcurrency = new PropertyBuilder<>("ArchiveConcurrency", 1)
+            .setRequired(false)
+            .setDescription("The number of request files in a zip archive to process at once "+
+                            "(1 processes them in sequence).")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> clusterChunkSize = new PropertyBuilder<>("ClusterChunkSize", 0)
+            .setRequired(false)
+            .setDescription("Split request files with more than this many requests (or CSV rows) into chunks "+
+                            "in the working directory, processed by all nodes of the cluster (0 to disable).")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> watchInbox = new PropertyBuilder<>("WatchInbox", false)
+            .setRequired(false)
+            .setDescription("Process request files dropped into the \"in\" folder of the working directory.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> certificateCache = new PropertyBuilder<>("CertificateCache", "")
+            .setRequired(false)
+            .setDescription("Link embedded certificates to Harmony by fingerprint, importing each once, "+
+                            "remembering them for the batch (the default), the connector, or not at all.")
+            .addPossibleValues("",
+                    CertificateCache.Scope.none.name(),
+                    CertificateCache.Scope.batch.name(),
+                    CertificateCache.Scope.connector.name())
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> profileFailover = new PropertyBuilder<>("ProfileFailover", false)
+            .setRequired(false)
+            .setDescription("Select to send requests for a profile whose servers are all unreachable "+
+                            "to the next available enabled profile instead of failing them.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> runConcurrency = new PropertyBuilder<>("RunConcurrency", 1)
+            .setRequired(false)
+            .setDescription("The number of run actions to run at once for each profile when a request "+
+                            "file contains only run requests (1 runs them in sequence).")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> runDeadline = new PropertyBuilder<>("RunDeadline", 0)
+            .setRequired(false)
+            .setDescription("The number of seconds to wait for the run actions of a request file that "+
+                            "contains only run requests before reporting the rest as errors (0 waits indefinitely).")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> schedulerConcurrency = new PropertyBuilder<>("SchedulerConcurrency", 0)
+            .setRequired(false)
+            .setDescription("The number of request slices processed at once across all request files on "+
+                            "the connector host, shared fairly between files (0 disables scheduling).")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> schedulingFlow = new PropertyBuilder<>("SchedulingFlow", "")
+            .setRequired(false)
+            .setDescription("Share scheduling between each request file (batch, the default) or between "+
+                            "the folders request files are submitted to (folder).")
+            .addPossibleValues("", "batch", "folder")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> schedulingWeight = new PropertyBuilder<>("SchedulingWeight", 1)
+            .setRequired(false)
+            .setDescription("The relative share of scheduling for request files, unless overridden by a "+
+                            "\"# priority: N\" first line in the request file.")
+            .setGroup(Connect)
+            .build();
+
     @Property
     final IConnectorProperty<Boolean> enableDebug = CommonProperties.of(CommonProperty.EnableDebug);
 
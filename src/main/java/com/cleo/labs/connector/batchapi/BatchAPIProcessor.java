@@ -1,12 +1,42 @@
 package com.cleo.labs.connector.batchapi;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import com.cleo.connector.api.helper.Logger;
 import com.cleo.connector.api.property.ConnectorPropertyException;
@@ -15,16 +45,137 @@ import com.cleo.labs.connector.batchapi.processor.ApiClientFactory;
 import com.cleo.labs.connector.batchapi.processor.BatchProcessor;
 import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
 import com.cleo.labs.connector.batchapi.processor.BatchProcessor.OutputFormat;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.io.CountingOutputStream;
 
 public class BatchAPIProcessor extends FilterOutputStream {
 
+    private static final String TRACE = ".trace.json";
+    private static final Pattern PRIORITY = Pattern.compile("\\A#\\s*priority:\\s*(\\d+)[^\\n]*\\n?");
+    private static final int SLICE = 50;
+    private static final int MAX_PRIORITY = 1000;
+    private static final int STARTUP_ATTEMPTS = 60;
+    private static final ScheduledExecutorService STARTUP = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "batchapi-startup");
+        t.setDaemon(true);
+        return t;
+    });
+
     private BatchAPIConnectorConfig config;
     private Path path;
     private Logger logger;
-    private ByteArrayOutputStream bytes;
+    private Buffer bytes;
     private CountingOutputStream output;
+    private Tracer tracer;
+    private ApiClientFactory apiClientFactory;
+
+    /**
+     * The content of a request file, readable in place without copying.
+     */
+    private interface Source {
+        InputStream input();
+
+        int size();
+
+        byte at(int index);
+
+        /**
+         * Returns the uncompressed size recorded in a gzip trailer.
+         */
+        default int gzipSize() {
+            int count = size();
+            if (count < 4) {
+                return 0;
+            }
+            long size = (at(count-4) & 0xffL) | (at(count-3) & 0xffL) << 8 |
+                    (at(count-2) & 0xffL) << 16 | (at(count-1) & 0xffL) << 24;
+            return size > Integer.MAX_VALUE / 2 ? 0 : (int) size;
+        }
+    }
+
+    /**
+     * The request file buffer for a {@code PUT}.
+     */
+    private static class Buffer extends ByteArrayOutputStream implements Source {
+        @Override
+        public InputStream input() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        @Override
+        public byte at(int index) {
+            return buf[index];
+        }
+    }
+
+    /**
+     * A request file on disk, read in place through positional reads of a
+     * channel. The channel is closed as soon as the file is processed, so
+     * that the file can be removed (which fails on Windows while a
+     * {@link java.nio.MappedByteBuffer} of it is still reachable).
+     */
+    private static class Stored implements Source, Closeable {
+        private final FileChannel channel;
+        private final int size;
+
+        private Stored(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            if (channel.size() > Integer.MAX_VALUE) {
+                channel.close();
+                throw new IOException(file.getFileName()+" is too large to process");
+            }
+            this.size = (int) channel.size();
+        }
+
+        @Override
+        public InputStream input() {
+            return new InputStream() {
+                private long position = 0;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+                    if (n > 0) {
+                        position += n;
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public byte at(int index) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            try {
+                channel.read(b, index);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return b.get(0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
 
     public BatchAPIProcessor(BatchAPIConnectorConfig config, Path path, Map<String,String> metadata, Logger logger) {
         super(null);
@@ -32,54 +183,177 @@ public class BatchAPIProcessor extends FilterOutputStream {
         this.path = path;
         this.logger = logger;
 
-        this.bytes = new ByteArrayOutputStream();
+        this.bytes = new Buffer();
         this.output = new CountingOutputStream(bytes);
         out = output;
+        this.tracer = Tracer.DISABLED;
+        this.apiClientFactory = null;
     }
 
-    private ApiClientFactory getApiClientFactory() {
-        return new ApiClientFactory() {
-            @Override
-            public ApiClient getApiClient(String profileName) throws Exception {
-                Profile selected = null;     // set if we get a match by name
-                Profile firstEnabled = null; // the first enabled profile
-                Profile firstDefault = null; // the first enabled profile named "default"
-                Profile[] profiles = config.getProfiles();
-                for (Profile profile : profiles) {
-                    if (profile.enabled()) {
-                        if (firstEnabled == null) {
-                            firstEnabled = profile;
-                        }
-                        if (firstDefault == null && "default".equals(profile.getProfileName())) {
-                            firstDefault = profile;
-                        }
-                        if (Strings.nullToEmpty(profileName).equals(Strings.nullToEmpty(profile.getProfileName()))) {
-                            selected = profile;
-                            break;
-                        }
+    /**
+     * Replaces the profile-based {@link ApiClientFactory} with an explicit
+     * one, e.g. a stub for benchmarks and tests.
+     * @param apiClientFactory the factory to use for all requests
+     * @return {@code this} for fluent style
+     */
+    BatchAPIProcessor apiClientFactory(ApiClientFactory apiClientFactory) {
+        this.apiClientFactory = apiClientFactory;
+        return this;
+    }
+
+    /**
+     * Resolves request profile names against the Profiles table. Enabled
+     * profiles sharing a name form a {@link ProfilePool}: each name is
+     * leased to one member for the life of the session, and the leases are
+     * released on {@link #close()}. Members whose {@link ProfileHealth}
+     * circuit is open are skipped, and optionally the request fails over to
+     * another profile name.
+     * <p>
+     * A batch starts with one session, and {@link #fork()}s a session of its
+     * own for each independent slice of requests, and for each thread of
+     * concurrent {@code run} actions ({@link #perThread()}), so that a large
+     * batch is spread across the members of a pool while requests that
+     * depend on each other reach the same member.
+     */
+    private class ProfileSession implements ApiClientFactory, AutoCloseable {
+        private final Map<String,ProfilePool.Lease> leases = new HashMap<>();
+        private final List<ProfileSession> forks = new ArrayList<>();
+
+        /**
+         * Returns a new session with its own leases, closed with this one.
+         */
+        private synchronized ProfileSession fork() {
+            ProfileSession fork = new ProfileSession();
+            forks.add(fork);
+            return fork;
+        }
+
+        /**
+         * Returns a factory that leases separately for each thread using it.
+         */
+        private ApiClientFactory perThread() {
+            Map<Thread,ProfileSession> sessions = new ConcurrentHashMap<>();
+            return profileName -> sessions.computeIfAbsent(Thread.currentThread(), t -> fork())
+                    .getApiClient(profileName);
+        }
+
+        private List<Profile> select(String profileName) throws ConnectorPropertyException {
+            List<Profile> selected = new ArrayList<>();  // enabled profiles matching by name
+            List<Profile> defaults = new ArrayList<>();  // enabled profiles named "default"
+            Profile firstEnabled = null;                 // the first enabled profile
+            for (Profile profile : config.getProfiles()) {
+                if (profile.enabled()) {
+                    if (firstEnabled == null) {
+                        firstEnabled = profile;
+                    }
+                    if ("default".equals(profile.getProfileName())) {
+                        defaults.add(profile);
                     }
+                    if (Strings.nullToEmpty(profileName).equals(Strings.nullToEmpty(profile.getProfileName()))) {
+                        selected.add(profile);
+                    }
+                }
+            }
+            if (selected.isEmpty() && Strings.isNullOrEmpty(profileName)) {
+                if (!defaults.isEmpty()) {
+                    selected = defaults;
+                } else if (firstEnabled != null) {
+                    selected.add(firstEnabled);
+                }
+            }
+            return selected;
+        }
+
+        /**
+         * Leases an available member of the pool for {@code name}, starting
+         * a background health probe of each member (see
+         * {@link ProfileHealth#probe()}).
+         * @return the lease, or {@code null} if every member's circuit is open
+         */
+        private ProfilePool.Lease lease(String name, List<Profile> selected) {
+            for (Profile profile : selected) {
+                ProfileHealth.of(profile.url()).probe();
+            }
+            ProfilePool pool = ProfilePool.of(name, selected);
+            ProfilePool.Lease lease = pool.lease(profile -> ProfileHealth.of(profile.url()).available());
+            if (lease != null && pool.size() > 1) {
+                Map<String,Integer> inFlight = pool.inFlight();
+                debug("profile \""+name+"\" leased "+lease.node()+", in flight "+inFlight);
+                tracer.counter("inFlight "+name, inFlight);
+            }
+            return lease;
+        }
+
+        /**
+         * Fails over to the first other enabled profile name, in table
+         * order, with an available member.
+         */
+        private ProfilePool.Lease failover(String name) throws ConnectorPropertyException {
+            Set<String> names = new LinkedHashSet<>();
+            for (Profile profile : config.getProfiles()) {
+                if (profile.enabled()) {
+                    names.add(Strings.nullToEmpty(profile.getProfileName()));
                 }
-                if (selected == null && Strings.isNullOrEmpty(profileName)) {
-                    selected = firstDefault != null ? firstDefault : firstEnabled;
+            }
+            names.remove(name);
+            for (String alternate : names) {
+                ProfilePool.Lease lease = lease(alternate, select(alternate));
+                if (lease != null) {
+                    debug("profile \""+name+"\" unavailable, failing over to \""+alternate+"\"");
+                    return lease;
                 }
-                if (selected == null) {
+            }
+            return null;
+        }
+
+        private synchronized ProfilePool.Lease lease(String profileName) throws Exception {
+            String name = Strings.nullToEmpty(profileName);
+            ProfilePool.Lease lease = leases.get(name);
+            if (lease == null) {
+                List<Profile> selected = select(profileName);
+                if (selected.isEmpty()) {
                     throw new Exception("profile "+profileName+" not found");
                 }
-                return new ApiClient(selected.url(), selected.user(), selected.password(), selected.ignoreTLSChecks());
+                lease = lease(name, selected);
+                if (lease == null && config.getProfileFailover()) {
+                    lease = failover(name);
+                }
+                if (lease == null) {
+                    List<ProfileHealth> health = new ArrayList<>();
+                    for (Profile profile : selected) {
+                        health.add(ProfileHealth.of(profile.url()));
+                    }
+                    throw new Exception("profile "+profileName+" unavailable: "+health);
+                }
+                leases.put(name, lease);
             }
-        };
-    }
+            return lease;
+        }
 
-    private void process(Path outputFile, Path logFile) throws IOException {
-        ApiClientFactory factory = null;
-        try {
-            if (config.getDefaultOperation() != Operation.preview) {
-                factory = getApiClientFactory();
+        @Override
+        public ApiClient getApiClient(String profileName) throws Exception {
+            ProfilePool.Lease lease = lease(profileName);
+            Profile selected = lease.profile();
+            return InstrumentedApiClient.connect(selected, tracer);
+        }
+
+        @Override
+        public synchronized void close() {
+            for (ProfileSession fork : forks) {
+                fork.close();
             }
-        } catch (ConnectorPropertyException e) {
-            factory = getApiClientFactory(); // I guess the default is something other than preview?
+            forks.clear();
+            for (ProfilePool.Lease lease : leases.values()) {
+                lease.close();
+                if (lease.pool().size() > 1) {
+                    tracer.counter("inFlight "+lease.pool().name(), lease.pool().inFlight());
+                }
+            }
+            leases.clear();
         }
+    }
 
+    private BatchProcessor newBatchProcessor(ApiClientFactory factory, Path logFile) {
         BatchProcessor processor = new BatchProcessor(factory);
         try {
             processor.setGeneratePasswords(config.getGeneratePasswords());
@@ -103,53 +377,628 @@ public class BatchAPIProcessor extends FilterOutputStream {
                 processor.setLogOutput(logFile);
             }
         } catch (ConnectorPropertyException ignore) {}
+        return processor;
+    }
 
-        String content = bytes.toString();
-        try (PrintStream out = new PrintStream(outputFile.toFile())) {
-            processor.processFile(path.getFileName().toString(), content, out);
+    /**
+     * Returns the requests in {@code content} if they can be handed to an
+     * {@link ActionRunner}: concurrent runs or a run deadline are enabled, the
+     * requests are all YAML or JSON {@code run} requests, and the results are
+     * YAML or JSON.
+     * Otherwise returns {@code null} and the file is processed as usual.
+     */
+    private List<ObjectNode> concurrentRuns(String content, ApiClientFactory factory) {
+        try {
+            if (factory == null || (config.getRunConcurrency() <= 1 && config.getRunDeadline() <= 0) ||
+                    !Strings.isNullOrEmpty(config.getTemplate()) ||
+                    !Strings.isNullOrEmpty(config.getOutputTemplate()) ||
+                    config.getOutputFormat() == OutputFormat.csv) {
+                return null;
+            }
+            List<ObjectNode> requests = ActionRunner.requests(content);
+            return ActionRunner.eligible(requests, config.getDefaultOperation()) ? requests : null;
+        } catch (ConnectorPropertyException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces embedded certificates with links to the certificates in
+     * Harmony, importing each certificate once (see {@link CertificateCache}).
+     * @return the request content, rewritten if any certificates were replaced
+     */
+    private String linkCertificates(String name, String content, ApiClientFactory factory) {
+        CertificateCache.Scope scope;
+        try {
+            scope = config.getCertificateCache();
+        } catch (ConnectorPropertyException e) {
+            scope = CertificateCache.Scope.batch;
+        }
+        if (!(factory instanceof ProfileSession) || scope == CertificateCache.Scope.none ||
+                !content.contains("certificate")) {
+            return content;
+        }
+        List<ObjectNode> requests = ActionRunner.requests(content);
+        if (requests == null) {
+            return content;
+        }
+        Operation defaultOperation;
+        try {
+            defaultOperation = config.getDefaultOperation();
+        } catch (ConnectorPropertyException e) {
+            defaultOperation = null;
+        }
+        ProfileSession session = (ProfileSession) factory;
+        Map<String,CertificateCache> caches = new HashMap<>();
+        Map<String,CertificateCache.Lookup> lookups = new HashMap<>();
+        int replaced = 0;
+        try (Tracer.Span span = tracer.span("batch", "linkCertificates")) {
+            for (ObjectNode request : requests) {
+                if (!CertificateCache.links(request, defaultOperation)) {
+                    continue;
+                }
+                Profile profile;
+                CertificateCache.Lookup lookup;
+                try {
+                    profile = session.lease(request.path("profile").asText("")).profile();
+                    lookup = lookups.get(profile.url());
+                    if (lookup == null) {
+                        lookup = new CertificateCache.ApiLookup(InstrumentedApiClient.connect(profile, tracer));
+                        lookups.put(profile.url(), lookup);
+                    }
+                } catch (Exception e) {
+                    continue; // reported when the request is processed
+                }
+                boolean shared = scope == CertificateCache.Scope.connector;
+                CertificateCache cache = caches.computeIfAbsent(profile.url(),
+                        url -> new CertificateCache(shared ? CertificateCache.shared(url) : null));
+                replaced += cache.rewrite(request, lookup);
+            }
+            span.arg("replaced", replaced);
+            if (replaced > 0) {
+                String rewritten = serialize(name, requests);
+                debug("linked "+replaced+" certificates in Harmony, request reduced from "+
+                        content.length()+" to "+rewritten.length()+" characters");
+                span.arg("requestChars", content.length()).arg("rewrittenChars", rewritten.length());
+                return rewritten;
+            }
+        } catch (IOException e) {
+            debug("unable to link certificates: "+e.getMessage());
+        }
+        return content;
+    }
+
+    private void process(String name, String content, Path outputFile, Path logFile) throws IOException {
+        if (!distribute(name, content, outputFile, logFile)) {
+            processChunk(name, content, outputFile, logFile);
+        }
+    }
+
+    /**
+     * Splits a request file larger than {@code ClusterChunkSize} requests
+     * into chunks in the shared working directory, processes the chunks
+     * along with the other nodes of the cluster (see {@link ChunkQueue}),
+     * and merges their results.
+     * @return {@code true} if the request file was distributed, {@code false}
+     *         if it is to be processed as a whole
+     */
+    private boolean distribute(String name, String content, Path outputFile, Path logFile) throws IOException {
+        try {
+            int size = config.getClusterChunkSize();
+            if (size <= 0 || config.getGeneratePasswords() || config.getOutputFormat() == OutputFormat.csv ||
+                    !Strings.isNullOrEmpty(config.getOutputTemplate())) {
+                return false; // CSV results of chunks can not be merged: their columns may differ
+            }
+            Matcher priority = PRIORITY.matcher(content);
+            String header = priority.find() ? priority.group() : "";
+            String body = content.substring(header.length());
+            Operation operation = config.getDefaultOperation();
+            ChunkQueue.Plan plan;
+            if (name.toLowerCase().endsWith(".csv")) {
+                plan = ChunkQueue.csv(body, size, operation, header);
+            } else {
+                boolean json = name.toLowerCase().endsWith(".json");
+                plan = ChunkQueue.requests(ActionRunner.requests(body), size, operation,
+                        json ? ResultWriter.JSON : ResultWriter.YAML, header);
+            }
+            if (plan == null) {
+                return false;
+            }
+            OutputFormat format = config.getOutputFormat();
+            boolean gzip = config.getOutputCompression() == Compression.Format.gzip;
+            Path workdir = config.getWorkingDirectory();
+            try (Tracer.Span span = tracer.span("batch", "distribute");
+                    ChunkQueue.Job job = ChunkQueue.create(workdir, name, plan, format, gzip, outputFile, logFile)) {
+                debug("distributing "+name+" in "+plan.size()+" chunks of up to "+size+" requests");
+                span.arg("chunks", plan.size());
+                int local = 0;
+                while (!job.done()) {
+                    ChunkQueue.Lease lease = job.claim();
+                    if (lease != null) {
+                        job.process(lease, this::processChunk);
+                        local++;
+                    } else {
+                        Thread.sleep(ChunkQueue.POLL);
+                    }
+                }
+                debug("merging "+plan.size()+" chunks of "+name+", "+local+" processed on this node");
+                span.arg("local", local);
+                job.merge();
+            }
+            return true;
+        } catch (ConnectorPropertyException e) {
+            throw new IOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted distributing "+name);
         }
     }
 
-    private String unique(Path parent, String base, String suffix1, String suffix2) {
-        suffix1 = Strings.nullToEmpty(suffix1);
-        suffix2 = Strings.nullToEmpty(suffix2);
+    /**
+     * Starts the background work of a connector as it initializes: the
+     * chunk worker, if {@code ClusterChunkSize} is set, and the inbox
+     * watcher, if {@code WatchInbox} is selected. The properties of a
+     * connector may not be readable until its constructor returns, so this
+     * tries again every second, for up to a minute, until they are.
+     * @param live the live configuration of the connector
+     * @param logger the logger of the connector, once it has one
+     */
+    static void initialize(BatchAPIConnectorConfig live, Supplier<Logger> logger) {
+        STARTUP.execute(() -> initialize(live, logger, STARTUP_ATTEMPTS));
+    }
+
+    private static void initialize(BatchAPIConnectorConfig live, Supplier<Logger> logger, int attempts) {
+        BatchAPIConnectorConfig config = live.snapshot();
+        try {
+            config.getWorkingDirectory();
+        } catch (ConnectorPropertyException | RuntimeException e) {
+            if (attempts > 1) {
+                STARTUP.schedule(() -> initialize(live, logger, attempts-1), 1, TimeUnit.SECONDS);
+            }
+            return;
+        }
+        startChunkWorker(live, config);
+        startInboxWatcher(live, config, logger);
+    }
+
+    /**
+     * Starts the worker processing chunks of request files distributed by
+     * any node of the cluster, once per JVM and working directory, if
+     * {@code ClusterChunkSize} is set, or stops it if it is not. The worker
+     * continues with the configuration of the latest connector to start it,
+     * and stops by itself once that configuration no longer matches.
+     * @param live the live configuration, snapshot again for each chunk
+     * @param config the current snapshot of the configuration
+     */
+    static void startChunkWorker(BatchAPIConnectorConfig live, BatchAPIConnectorConfig config) {
+        try {
+            Path workdir = config.getWorkingDirectory();
+            if (config.getClusterChunkSize() <= 0) {
+                ChunkQueue.stop(workdir);
+                return;
+            }
+            ChunkQueue.start(workdir, new ChunkQueue.Processor() {
+                @Override
+                public void process(String name, String content, Path result, Path log) throws IOException {
+                    new BatchAPIProcessor(live.snapshot(), result, Collections.emptyMap(), null)
+                        .processChunk(name, content, result, log);
+                }
+
+                @Override
+                public boolean active() {
+                    try {
+                        BatchAPIConnectorConfig current = live.snapshot();
+                        return current.getClusterChunkSize() > 0 && current.getWorkingDirectory().equals(workdir);
+                    } catch (ConnectorPropertyException e) {
+                        return false;
+                    }
+                }
+            });
+        } catch (ConnectorPropertyException e) {
+            // not configured
+        }
+    }
+
+    /**
+     * Starts watching the inbox of the working directory for request files,
+     * once per JVM and working directory, if {@code WatchInbox} is selected,
+     * or stops watching it if it is not. The watcher continues with the
+     * configuration and logger of the latest connector to start it, and
+     * stops by itself once that configuration no longer matches.
+     * @param live the live configuration, snapshot again for each request file
+     * @param config the current snapshot of the configuration
+     * @param logger the logger for request files that fail
+     */
+    static void startInboxWatcher(BatchAPIConnectorConfig live, BatchAPIConnectorConfig config,
+            Supplier<Logger> logger) {
+        try {
+            Path workdir = config.getWorkingDirectory();
+            if (!config.getWatchInbox()) {
+                InboxWatcher.stop(workdir);
+                return;
+            }
+            InboxWatcher.start(workdir, new InboxWatcher.Handler() {
+                @Override
+                public void process(Path file, String name) throws IOException {
+                    BatchAPIProcessor processor = new BatchAPIProcessor(live.snapshot(), workdir.resolve(name),
+                            Collections.emptyMap(), logger.get());
+                    try {
+                        processor.processFile(file);
+                    } catch (IOException | RuntimeException e) {
+                        if (logger.get() != null) {
+                            logger.get().logError("unable to process "+InboxWatcher.INBOX+"/"+name+": "+e.getMessage());
+                        }
+                        processor.error(e);
+                        throw e;
+                    }
+                }
+
+                @Override
+                public boolean active() {
+                    try {
+                        BatchAPIConnectorConfig current = live.snapshot();
+                        return current.getWatchInbox() && current.getWorkingDirectory().equals(workdir);
+                    } catch (ConnectorPropertyException e) {
+                        return false;
+                    }
+                }
+            });
+        } catch (ConnectorPropertyException e) {
+            // not configured
+        }
+    }
+
+    /**
+     * Writes a result file reporting that the request file could not be
+     * processed at all, for request files that are not submitted by a
+     * {@code PUT} (which reports the error to Harmony instead).
+     * @param e the reason
+     */
+    private void error(Exception e) {
+        try {
+            OutputFormat format = config.getOutputFormat() == OutputFormat.json ? OutputFormat.json : OutputFormat.yaml;
+            boolean gzip = config.getOutputCompression() == Compression.Format.gzip;
+            String ext = "."+format.name()+(gzip ? ".gz" : "");
+            String base = Compression.strip(path.getFileName().toString()).replaceFirst("\\.[^.]*$","");
+            Path parent = path.getParent();
+            ObjectNode error = ResultWriter.YAML.createObjectNode();
+            error.putObject("result").put("status", "error").put("message", String.valueOf(e.getMessage()));
+            try (OutputStream file = Files.newOutputStream(parent.resolve(unique(parent, base, ext)));
+                    OutputStream out = gzip ? new GZIPOutputStream(file) : file) {
+                (format == OutputFormat.json ? ResultWriter.JSON : ResultWriter.YAML)
+                    .writeValue(out, Collections.singletonList(error));
+            }
+        } catch (ConnectorPropertyException | IOException | RuntimeException ignore) {
+            // logged by the caller
+        }
+    }
+
+    /**
+     * Processes a request file, or one chunk of it, on this node.
+     */
+    private void processChunk(String name, String content, Path outputFile, Path logFile) throws IOException {
+        ApiClientFactory factory = apiClientFactory;
+        try {
+            if (factory == null && config.getDefaultOperation() != Operation.preview) {
+                factory = new ProfileSession();
+            }
+        } catch (ConnectorPropertyException e) {
+            factory = new ProfileSession(); // I guess the default is something other than preview?
+        }
+        try {
+            process(name, content, outputFile, logFile, factory);
+        } finally {
+            if (factory instanceof ProfileSession) {
+                ((ProfileSession) factory).close();
+            }
+        }
+    }
+
+    /**
+     * Serializes requests back into a request file in the format of the
+     * original file.
+     */
+    /**
+     * Parses the weight of a {@code # priority: N} header, clamped to
+     * {@link #MAX_PRIORITY}.
+     */
+    private static int priority(String digits) {
+        try {
+            return Math.min(MAX_PRIORITY, Integer.parseInt(digits));
+        } catch (NumberFormatException e) {
+            return MAX_PRIORITY; // too many digits for an int
+        }
+    }
+
+    private static String serialize(String name, List<ObjectNode> requests) throws IOException {
+        boolean json = name.toLowerCase().endsWith(".json");
+        return (json ? ResultWriter.JSON : ResultWriter.YAML).writeValueAsString(requests);
+    }
+
+    /**
+     * Returns {@code true} if enabled profiles share a name, forming a
+     * {@link ProfilePool} whose members a batch should be spread across.
+     */
+    private boolean pooled() throws ConnectorPropertyException {
+        Set<String> names = new HashSet<>();
+        for (Profile profile : config.getProfiles()) {
+            if (profile.enabled() && !names.add(Strings.nullToEmpty(profile.getProfileName()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a large YAML or JSON request file into slices of
+     * {@link #SLICE} requests, with the earlier slices each depends on (see
+     * {@link ChunkQueue#requests}), when the slices are to be admitted
+     * separately by the {@link BatchScheduler} or spread across the members
+     * of a {@link ProfilePool}. The file is left whole if neither applies,
+     * or if slicing would change the results: CSV requests and results,
+     * templates and generated password reports. Tracing never changes how
+     * a file is sliced.
+     * @return the slices, or {@code null} to process the file whole
+     */
+    private ChunkQueue.Plan slices(String name, String content, ApiClientFactory factory)
+            throws ConnectorPropertyException, IOException {
+        if (!(config.getSchedulerConcurrency() > 0 || factory instanceof ProfileSession && pooled()) ||
+                config.getGeneratePasswords() ||
+                !Strings.isNullOrEmpty(config.getTemplate()) ||
+                !Strings.isNullOrEmpty(config.getOutputTemplate()) ||
+                config.getOutputFormat() == OutputFormat.csv || name.toLowerCase().endsWith(".csv")) {
+            return null;
+        }
+        ObjectMapper mapper = name.toLowerCase().endsWith(".json") ? ResultWriter.JSON : ResultWriter.YAML;
+        return ChunkQueue.requests(ActionRunner.requests(content), SLICE, config.getDefaultOperation(), mapper, "");
+    }
+
+    private BatchScheduler.Permit admit(BatchScheduler.Flow flow, String slice) throws IOException {
+        try (Tracer.Span span = tracer.span("schedule", "admit")) {
+            span.arg("cost", slice.length()).arg("weight", flow.weight());
+            return flow.admit(slice.length());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting to be scheduled");
+        }
+    }
+
+    private void process(String name, String content, Path outputFile, Path logFile, ApiClientFactory factory)
+            throws IOException {
+        try {
+            int weight = config.getSchedulingWeight();
+            Matcher priority = PRIORITY.matcher(content);
+            if (priority.find()) {
+                weight = priority(priority.group(1));
+                content = content.substring(priority.end());
+            }
+            BatchScheduler scheduler = BatchScheduler.of(config.getWorkingDirectory())
+                    .budget(config.getSchedulerConcurrency());
+            String key = config.getSchedulingByFolder()
+                    ? "folder:"+path.getParent()
+                    : "batch:"+path+"!"+name+"@"+System.identityHashCode(this);
+            boolean gzip = config.getOutputCompression() == Compression.Format.gzip;
+
+            content = linkCertificates(name, content, factory);
+            List<ObjectNode> runs = concurrentRuns(content, factory);
+            try (BatchScheduler.Flow flow = scheduler.flow(key, weight);
+                    Tracer.Span span = tracer.span("batch", "process");
+                    CountingOutputStream counter = new CountingOutputStream(Files.newOutputStream(outputFile));
+                    PrintStream out = new PrintStream(gzip ? new GZIPOutputStream(counter, 64 * 1024) : counter)) {
+                span.arg("file", name).arg("requestChars", content.length());
+                if (runs != null) {
+                    int concurrency = config.getRunConcurrency();
+                    debug("running "+name+" with up to "+concurrency+" concurrent actions");
+                    try (ResultWriter writer = new ResultWriter(out, config.getOutputFormat())) {
+                        ApiClientFactory clients = factory instanceof ProfileSession
+                                ? ((ProfileSession) factory).perThread()
+                                : factory;
+                        new ActionRunner(clients, c -> newBatchProcessor(c, null), concurrency,
+                                config.getRunDeadline(), logger, tracer).flow(flow).run(runs, writer);
+                    }
+                } else {
+                    ChunkQueue.Plan slices = slices(name, content, factory);
+                    if (slices == null) {
+                        try (BatchScheduler.Permit permit = admit(flow, content)) {
+                            newBatchProcessor(factory, logFile).processFile(name, content, out);
+                        }
+                    } else {
+                        debug("scheduling "+name+" in "+slices.size()+" slices with weight "+flow.weight());
+                        // a slice depending on earlier ones shares the session of the latest of them
+                        List<ApiClientFactory> sessions = new ArrayList<>();
+                        Map<ApiClientFactory,BatchProcessor> processors = new HashMap<>();
+                        try (ResultWriter writer = new ResultWriter(out, config.getOutputFormat())) {
+                            for (int i = 0; i < slices.size(); i++) {
+                                String slice = slices.chunk(i);
+                                ApiClientFactory session = !slices.after(i).isEmpty()
+                                        ? sessions.get(Collections.max(slices.after(i)))
+                                        : factory instanceof ProfileSession ? ((ProfileSession) factory).fork() : factory;
+                                sessions.add(session);
+                                BatchProcessor processor = processors.computeIfAbsent(session,
+                                        f -> newBatchProcessor(f, null));
+                                ByteArrayOutputStream part = new ByteArrayOutputStream();
+                                try (BatchScheduler.Permit permit = admit(flow, slice);
+                                        Tracer.Span sliced = tracer.span("batch", "slice "+i);
+                                        PrintStream partOut = new PrintStream(part, false, "UTF-8")) {
+                                    sliced.arg("first", i * SLICE).arg("requestChars", slice.length());
+                                    processor.processFile(name, slice, partOut);
+                                }
+                                writer.append(new String(part.toByteArray(), StandardCharsets.UTF_8));
+                            }
+                        }
+                    }
+                }
+                out.close();
+                span.arg("resultBytes", counter.getCount());
+            }
+        } catch (ConnectorPropertyException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void debug(String message) {
+        if (logger != null) {
+            logger.debug(message);
+        }
+    }
+
+    static String unique(Path parent, String base, String...suffixes) {
         String test = base;
         int counter = 0;
-        while (Files.exists(parent.resolve(test+suffix1)) || Files.exists(parent.resolve(test+suffix2))) {
+        while (exists(parent, test, suffixes)) {
             counter++;
             test = base+"("+counter+")";
         }
         return test;
     }
 
+    private static boolean exists(Path parent, String base, String...suffixes) {
+        for (String suffix : suffixes) {
+            if (Files.exists(parent.resolve(base+Strings.nullToEmpty(suffix)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Processes the request files in a zip archive, each to its own result
+     * file, up to {@code ArchiveConcurrency} at a time.
+     */
+    private void processEntries(Source source, Path parent, String ext, String log) throws IOException {
+        int concurrency;
+        try {
+            concurrency = config.getArchiveConcurrency();
+        } catch (ConnectorPropertyException e) {
+            concurrency = 1;
+        }
+        ExecutorService executor = concurrency > 1 ? Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "batchapi-archive");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+        Semaphore permits = new Semaphore(concurrency);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            Compression.entries(source.input(), Charset.defaultCharset(), (entry, content) -> {
+                String base = Compression.strip(entry).replaceFirst("\\.[^.]*$","");
+                Path outputFile;
+                synchronized (BatchAPIProcessor.class) {
+                    outputFile = parent.resolve(unique(parent, base, ext, log)+ext);
+                    Files.write(outputFile, new byte[0]); // reserve the name
+                }
+                Path logFile = log == null ? null : parent.resolve(outputFile.getFileName().toString()
+                        .replaceFirst(Pattern.quote(ext)+"$", log));
+                debug("generating "+outputFile.getFileName()+" from "+path.getFileName()+"!"+entry);
+                if (executor == null) {
+                    process(entry, content, outputFile, logFile);
+                } else {
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted processing "+entry);
+                    }
+                    futures.add(executor.submit(() -> {
+                        try {
+                            process(entry, content, outputFile, logFile);
+                        } finally {
+                            permits.release();
+                        }
+                        return null;
+                    }));
+                }
+            });
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted processing "+path.getFileName());
+                } catch (ExecutionException e) {
+                    Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
     @Override
     public void close() throws IOException {
         super.close();
+        process(bytes);
+    }
 
+    /**
+     * Processes a request file already on disk, e.g. one dropped into the
+     * inbox (see {@link InboxWatcher}), reading it in place rather than
+     * copying it into the buffer. The results are named after the path of
+     * this processor.
+     * @param file the request file
+     */
+    public void processFile(Path file) throws IOException {
+        try (Stored stored = new Stored(file)) {
+            process(stored);
+        }
+    }
+
+    private void process(Source source) throws IOException {
         String name = path.getFileName().toString();
-        String base = name.replaceFirst("\\.[^.]*$","");
+        Compression.Format compression = Compression.detect(source.input());
+        String base = Compression.strip(name).replaceFirst("\\.[^.]*$","");
         OutputFormat outputFormat;
+        boolean gzip;
         try {
             if (!Strings.isNullOrEmpty(config.getOutputTemplate())) {
                 outputFormat = OutputFormat.csv;
             } else {
                 outputFormat = config.getOutputFormat();
             }
+            gzip = config.getOutputCompression() == Compression.Format.gzip;
         } catch (ConnectorPropertyException e) {
             outputFormat = OutputFormat.yaml;
+            gzip = false;
         }
-        String ext = "."+outputFormat.name();
+        String ext = "."+outputFormat.name()+(gzip ? ".gz" : "");
         String log = outputFormat == OutputFormat.csv ? ".log" : null;
         Path parent = path.getParent();
-        String unique = unique(parent, base, ext, log);
-        Path outputFile = parent.resolve(unique+ext);
-        Path logFile = null;
-        logger.debug("generating "+outputFile.getFileName()+" from "+path.getFileName());
-        if (outputFormat == OutputFormat.csv) {
-            logFile = outputFormat == OutputFormat.csv ? parent.resolve(unique+log) : null;
-            logger.debug("logging to "+logFile+" from "+path.getFileName());
-        }
-        process(outputFile, logFile);
+        String unique = compression == Compression.Format.zip
+                ? unique(parent, base, TRACE)
+                : unique(parent, base, ext, log, TRACE);
+        int tracePercent;
+        try {
+            tracePercent = config.getTraceSamplePercent();
+        } catch (ConnectorPropertyException e) {
+            tracePercent = 0;
+        }
+        tracer = Tracer.sample(tracePercent, parent.resolve(unique+TRACE));
+        if (tracer.enabled()) {
+            debug("tracing to "+tracer.file().getFileName()+" from "+path.getFileName());
+        }
+        try (Tracer.Span span = tracer.span("batch", name)) {
+            span.arg("requestBytes", source.size()).arg("compression", compression.name());
+            if (compression == Compression.Format.zip) {
+                processEntries(source, parent, ext, log);
+            } else {
+                Path outputFile = parent.resolve(unique+ext);
+                Path logFile = null;
+                debug("generating "+outputFile.getFileName()+" from "+path.getFileName());
+                if (outputFormat == OutputFormat.csv) {
+                    logFile = parent.resolve(unique+log);
+                    debug("logging to "+logFile+" from "+path.getFileName());
+                }
+                span.arg("output", outputFile.getFileName().toString());
+                String content = Compression.read(source.input(), compression, Charset.defaultCharset(),
+                        compression == Compression.Format.gzip ? source.gzipSize() : source.size());
+                process(Compression.strip(name), content, outputFile, logFile);
+            }
+        } finally {
+            tracer.close();
+        }
     }
 
 }
@@ -0,0 +1,209 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares a budget of concurrently processing slices of request files among
+ * all PUTs to a working directory on the connector host by weighted fair
+ * queuing.
+ * <p>
+ * Each batch belongs to a {@link Flow}: the batch itself, or all batches
+ * submitted to the same folder. A flow asks to {@link Flow#admit(long)}
+ * each slice with a cost (its size), and waiting slices are admitted in
+ * order of virtual finish time, {@code start + cost / weight}, where
+ * {@code start} is the later of the flow's previous finish and the virtual
+ * time of the scheduler. A small batch therefore does not wait behind all
+ * the slices of a large import, while the import still progresses at its
+ * share of the budget. Since a batch submits its slices in order, one at a
+ * time, weights decide the order among batches waiting for the budget
+ * rather than reserving a fraction of it.
+ * <p>
+ * With a budget of {@code 0} slices are admitted immediately. There is one
+ * scheduler for each working directory, so that connectors configured with
+ * different budgets do not reset each other's.
+ */
+public class BatchScheduler {
+
+    private static final Map<Path,BatchScheduler> SCHEDULERS = new ConcurrentHashMap<>();
+
+    private final Map<String,Flow> flows;
+    private final PriorityQueue<Waiter> queue;
+    private int budget;
+    private int active;
+    private double virtualTime;
+    private long sequence;
+
+    private static class Waiter implements Comparable<Waiter> {
+        private final double start;
+        private final double finish;
+        private final long sequence;
+        private boolean admitted;
+
+        private Waiter(double start, double finish, long sequence) {
+            this.start = start;
+            this.finish = finish;
+            this.sequence = sequence;
+            this.admitted = false;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int cmp = Double.compare(finish, other.finish);
+            return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * A slice admitted for processing, to be closed when it is done.
+     */
+    public interface Permit extends AutoCloseable {
+        Permit NONE = () -> {};
+
+        @Override
+        void close();
+    }
+
+    /**
+     * A sequence of slices sharing a weight and a virtual finish time.
+     */
+    public class Flow implements AutoCloseable {
+        private final String key;
+        private final int weight;
+        private double finish;
+        private int references;
+
+        private Flow(String key, int weight) {
+            this.key = key;
+            this.weight = weight;
+            this.finish = 0;
+            this.references = 0;
+        }
+
+        public int weight() {
+            return weight;
+        }
+
+        /**
+         * Waits until a slice of {@code cost} may be processed.
+         * @param cost the cost of the slice, e.g. its size in bytes
+         * @return the permit, to be closed when the slice is done
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public Permit admit(long cost) throws InterruptedException {
+            synchronized (BatchScheduler.this) {
+                if (budget <= 0) {
+                    return Permit.NONE;
+                }
+                double start = Math.max(virtualTime, finish);
+                finish = start + (double) Math.max(1, cost) / weight;
+                Waiter waiter = new Waiter(start, finish, sequence++);
+                queue.add(waiter);
+                dispatch();
+                try {
+                    while (!waiter.admitted) {
+                        BatchScheduler.this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    if (!queue.remove(waiter)) {
+                        release();
+                    }
+                    throw e;
+                }
+                return new Permit() {
+                    private boolean closed = false;
+                    @Override
+                    public void close() {
+                        synchronized (BatchScheduler.this) {
+                            if (!closed) {
+                                closed = true;
+                                release();
+                            }
+                        }
+                    }
+                };
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (BatchScheduler.this) {
+                if (--references <= 0) {
+                    flows.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the scheduler for {@code workdir}, creating it if needed.
+     * @param workdir the working directory
+     * @return the scheduler
+     */
+    public static BatchScheduler of(Path workdir) {
+        return SCHEDULERS.computeIfAbsent(workdir.toAbsolutePath().normalize(), dir -> new BatchScheduler());
+    }
+
+    private BatchScheduler() {
+        this.flows = new HashMap<>();
+        this.queue = new PriorityQueue<>();
+        this.budget = 0;
+        this.active = 0;
+        this.virtualTime = 0;
+        this.sequence = 0;
+    }
+
+    /**
+     * Sets the number of slices processed at once, {@code 0} for no limit.
+     * @param budget the concurrency budget
+     * @return {@code this} for fluent style
+     */
+    public synchronized BatchScheduler budget(int budget) {
+        this.budget = Math.max(0, budget);
+        dispatch();
+        return this;
+    }
+
+    public synchronized int budget() {
+        return budget;
+    }
+
+    public synchronized int active() {
+        return active;
+    }
+
+    public synchronized int waiting() {
+        return queue.size();
+    }
+
+    /**
+     * Joins the flow for {@code key}, creating it if needed. Close the flow
+     * when the batch is done.
+     * @param key the flow key, e.g. the batch or its folder
+     * @param weight the flow's weight, at least 1 (ignored if the flow exists)
+     * @return the flow
+     */
+    public synchronized Flow flow(String key, int weight) {
+        Flow flow = flows.computeIfAbsent(key, k -> new Flow(k, Math.max(1, weight)));
+        flow.references++;
+        return flow;
+    }
+
+    private void release() {
+        active--;
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (!queue.isEmpty() && (budget <= 0 || active < budget)) {
+            Waiter next = queue.poll();
+            virtualTime = Math.max(virtualTime, next.start);
+            next.admitted = true;
+            active++;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,321 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.cleo.labs.connector.batchapi.processor.ApiClient;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Maps certificate fingerprints to the {@code href} of the certificate in
+ * Harmony, so that connections embedding the same certificate (see
+ * Certificate Handling in the README) link to it instead of each carrying
+ * and importing their own copy.
+ * <p>
+ * Harmony identifies a certificate by the SHA-1 fingerprint of its DER
+ * encoding ({@code /api/certs/<sha1>}). The fingerprint of the end entity
+ * certificate in each embedded {@code certificate} is resolved once per
+ * server: it is looked up with {@code GET /api/certs/<sha1>}, and a
+ * certificate not yet in Harmony is imported with {@code POST /api/certs}.
+ * Every reference to the certificate, the first included, is then rewritten
+ * to the {@code href} found or created. Certificates that can be neither
+ * found nor imported are left for the batch processor to import as usual.
+ * <p>
+ * A cache is scoped to one batch and one server. It may be backed by the
+ * connector-wide {@link #shared(String)} cache for the server, which
+ * remembers resolved certificates (but not failures) for
+ * {@link #SHARED_TTL}.
+ */
+public class CertificateCache {
+
+    public static final long SHARED_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The scope of certificate caching: disabled, per batch, or per batch
+     * backed by the connector-wide cache.
+     */
+    public enum Scope {none, batch, connector}
+
+    private static final Map<String,CertificateCache> SHARED = new ConcurrentHashMap<>();
+
+    private final CertificateCache shared;
+    private final Map<String,Resolved> resolved;
+    private final Set<String> failed;
+
+    /**
+     * A certificate in Harmony, and when it was resolved.
+     */
+    private static class Resolved {
+        private final String href;
+        private final long time;
+
+        private Resolved(String href) {
+            this.href = href;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Looks up and imports certificates on a Harmony server.
+     */
+    public interface Lookup {
+        /**
+         * @param fingerprint the lowercase hex SHA-1 fingerprint
+         * @return the {@code href} of the certificate, or {@code null} if it does not exist
+         */
+        String find(String fingerprint) throws IOException;
+
+        /**
+         * @param fingerprint the lowercase hex SHA-1 fingerprint of the end entity certificate
+         * @param certificate the embedded {@code certificate} value
+         * @return the {@code href} of the imported certificate, or {@code null} if it was not imported
+         */
+        String upload(String fingerprint, JsonNode certificate) throws IOException;
+    }
+
+    /**
+     * Creates a cache for one batch.
+     * @param shared the connector-wide cache for the server, or {@code null}
+     */
+    public CertificateCache(CertificateCache shared) {
+        this.shared = shared;
+        this.resolved = new ConcurrentHashMap<>();
+        this.failed = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Returns the connector-wide cache for the server at {@code url}.
+     */
+    public static CertificateCache shared(String url) {
+        return SHARED.computeIfAbsent(Strings.nullToEmpty(url), u -> new CertificateCache(null));
+    }
+
+    private String get(String fingerprint, long ttl) {
+        Resolved seen = resolved.get(fingerprint);
+        return seen != null && System.currentTimeMillis() - seen.time < ttl ? seen.href : null;
+    }
+
+    public static String href(String fingerprint) {
+        return "/api/certs/"+fingerprint;
+    }
+
+    private static String text(JsonNode certificate) {
+        if (certificate.isArray()) {
+            List<String> parts = new ArrayList<>();
+            for (JsonNode part : certificate) {
+                parts.add(part.asText());
+            }
+            return Joiner.on('\n').join(parts);
+        }
+        return certificate.asText();
+    }
+
+    /**
+     * Computes the fingerprint of the end entity certificate of an embedded
+     * {@code certificate} value in any of the supported forms: base64 DER,
+     * PEM, a list of PEM certificates (or a YAML list of them) or PKCS#7.
+     * @param certificate the {@code certificate} value
+     * @return the lowercase hex SHA-1 fingerprint, or {@code null} if the
+     *         value can not be parsed
+     */
+    public static String fingerprint(JsonNode certificate) {
+        String text = text(certificate);
+        try {
+            byte[] encoded = text.contains("-----BEGIN")
+                    ? text.getBytes(StandardCharsets.US_ASCII)
+                    : Base64.getMimeDecoder().decode(text);
+            Collection<? extends Certificate> certs = CertificateFactory.getInstance("X.509")
+                    .generateCertificates(new ByteArrayInputStream(encoded));
+            X509Certificate endEntity = endEntity(certs);
+            if (endEntity == null) {
+                return null;
+            }
+            byte[] sha1 = MessageDigest.getInstance("SHA-1").digest(endEntity.getEncoded());
+            return BaseEncoding.base16().lowerCase().encode(sha1);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the first certificate in the bundle that is not the issuer of
+     * another certificate in the bundle.
+     */
+    private static X509Certificate endEntity(Collection<? extends Certificate> certs) {
+        for (Certificate cert : certs) {
+            X509Certificate candidate = (X509Certificate) cert;
+            boolean issuer = false;
+            for (Certificate other : certs) {
+                if (other != cert &&
+                        ((X509Certificate) other).getIssuerX500Principal().equals(candidate.getSubjectX500Principal())) {
+                    issuer = true;
+                    break;
+                }
+            }
+            if (!issuer) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the {@code href} of the certificate, looking it up (and
+     * importing it if it does not exist) the first time each fingerprint is
+     * seen.
+     * @param fingerprint the fingerprint
+     * @param certificate the embedded {@code certificate} value
+     * @param lookup the lookup for the server
+     * @return the {@code href}, or {@code null} if the certificate could not be found or imported
+     */
+    public String resolve(String fingerprint, JsonNode certificate, Lookup lookup) {
+        String href = get(fingerprint, Long.MAX_VALUE);
+        if (href == null && shared != null) {
+            href = shared.get(fingerprint, SHARED_TTL);
+        }
+        if (href != null || failed.contains(fingerprint)) {
+            return href;
+        }
+        // batches sharing the connector-wide cache import each certificate once
+        synchronized (shared != null ? shared : this) {
+            href = shared != null ? shared.get(fingerprint, SHARED_TTL) : null;
+            try {
+                if (href == null) {
+                    href = lookup.find(fingerprint);
+                }
+                if (href == null) {
+                    href = lookup.upload(fingerprint, certificate);
+                }
+            } catch (IOException e) {
+                href = null;
+            }
+            if (href == null) {
+                // the batch processor imports the certificate as usual
+                failed.add(fingerprint);
+                return null;
+            }
+            resolved.put(fingerprint, new Resolved(href));
+            if (shared != null) {
+                shared.resolved.put(fingerprint, new Resolved(href));
+            }
+            return href;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the embedded certificates of {@code request}
+     * should be linked: only {@code add} and {@code update} requests import
+     * certificates.
+     * @param request the request
+     * @param defaultOperation the default operation, {@code null} for {@code add}
+     */
+    public static boolean links(ObjectNode request, Operation defaultOperation) {
+        String operation = request.path("operation").asText(
+                (defaultOperation == null ? Operation.add : defaultOperation).name());
+        return operation.equals(Operation.add.name()) || operation.equals(Operation.update.name());
+    }
+
+    /**
+     * Replaces each embedded {@code {certificate: ...}} in {@code request}
+     * that can be resolved to a certificate in Harmony with {@code {href: ...}}.
+     * @param request the request, modified in place
+     * @param lookup the lookup for the server the request is sent to
+     * @return the number of certificates replaced
+     */
+    public int rewrite(JsonNode request, Lookup lookup) {
+        int replaced = 0;
+        if (request.isObject()) {
+            ObjectNode object = (ObjectNode) request;
+            Iterator<Map.Entry<String,JsonNode>> fields = object.fields();
+            List<String> names = new ArrayList<>();
+            while (fields.hasNext()) {
+                names.add(fields.next().getKey());
+            }
+            for (String name : names) {
+                JsonNode value = object.get(name);
+                if (value.isObject() && value.size() == 1 && value.has("certificate")) {
+                    String fingerprint = fingerprint(value.get("certificate"));
+                    String href = fingerprint == null ? null : resolve(fingerprint, value.get("certificate"), lookup);
+                    if (href != null) {
+                        object.putObject(name).put("href", href);
+                        replaced++;
+                    }
+                } else {
+                    replaced += rewrite(value, lookup);
+                }
+            }
+        } else if (request.isArray()) {
+            for (JsonNode element : request) {
+                replaced += rewrite(element, lookup);
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * A {@link Lookup} using the {@link ApiClient} of a {@link Profile}.
+     */
+    public static class ApiLookup implements Lookup {
+        private final ApiClient client;
+
+        public ApiLookup(ApiClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public String find(String fingerprint) throws IOException {
+            try {
+                return client.get(href(fingerprint)) == null ? null : href(fingerprint);
+            } catch (Exception e) {
+                if (InstrumentedApiClient.unreachable(e)) {
+                    throw new IOException(e);
+                }
+                return null; // not found
+            }
+        }
+
+        /**
+         * Imports the certificate (with any issuers in its bundle), and
+         * confirms that the certificate with {@code fingerprint} now exists
+         * unless the server answered with its {@code href}.
+         */
+        @Override
+        public String upload(String fingerprint, JsonNode certificate) throws IOException {
+            String text = text(certificate);
+            ObjectNode request = JsonNodeFactory.instance.objectNode()
+                    .put("requestType", "importCert")
+                    .put("import", text.contains("-----BEGIN")
+                            ? Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.US_ASCII))
+                            : text.replaceAll("\\s", ""));
+            ObjectNode imported;
+            try {
+                imported = client.post(request, "/api/certs");
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            String href = imported == null ? "" : imported.at("/_links/self/href").asText("");
+            return href.equals(href(fingerprint)) ? href : find(fingerprint);
+        }
+    }
+}
@@ -0,0 +1,785 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.OutputFormat;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * Splits large request files into chunks in the shared working directory,
+ * so that every node of a Harmony cluster can process part of them.
+ * <p>
+ * Each request file becomes a {@link Job}: a directory under
+ * {@code <working directory>/.chunks} holding the chunks (a range of CSV
+ * rows, or of YAML or JSON requests), a manifest, and the results as they
+ * are completed. Nodes claim chunks with lease files created exclusively
+ * ({@code 00001.lease.1}, {@code 00001.lease.2}, ...). The holder touches
+ * its lease every {@link #HEARTBEAT}, and a lease that has not been
+ * touched for {@link #EXPIRY} may be taken over by creating the next
+ * generation. A node that crashes therefore costs only the chunk it held,
+ * which another node runs again, and a holder whose lease was taken over
+ * discards its result.
+ * <p>
+ * Chunks are claimed in order. If every request is an {@code add}, a chunk
+ * referring to an object added by an earlier chunk (users of an
+ * authenticator, actions of a user or connection, or CSV rows repeating a
+ * {@code Host}) waits for that chunk to complete. Any other operation may
+ * depend on anything before it, so each chunk of such a request file waits
+ * for the previous one. The results are merged in chunk order by the node
+ * that submitted the request file, or by any node if the submitter's own
+ * lease expires.
+ */
+public class ChunkQueue {
+
+    public static final String DIRECTORY = ".chunks";
+    public static final long HEARTBEAT = TimeUnit.SECONDS.toMillis(10);
+    public static final long EXPIRY = TimeUnit.SECONDS.toMillis(60);
+    public static final long POLL = TimeUnit.SECONDS.toMillis(2);
+
+    private static final String MANIFEST = "job.json";
+    private static final String MERGED = "merged";
+    private static final Pattern LEASE = Pattern.compile("(\\w+)\\.lease\\.(\\d+)");
+    private static final Set<Path> HELD = ConcurrentHashMap.newKeySet();
+    private static final Map<Path,Processor> WORKERS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "batchapi-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        HEARTBEATS.scheduleWithFixedDelay(ChunkQueue::heartbeat, HEARTBEAT, HEARTBEAT, TimeUnit.MILLISECONDS);
+    }
+
+    private ChunkQueue() {}
+
+    /**
+     * Returns the attribute restricting a new file or directory to its
+     * owner, or none if the file system does not support POSIX permissions.
+     */
+    private static FileAttribute<?>[] owner(Path path, String permissions) {
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[0];
+        }
+        return new FileAttribute<?>[] {
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))
+        };
+    }
+
+    /**
+     * Writes a new file readable only by its owner: chunks hold request
+     * content, passwords included.
+     */
+    private static void write(Path file, byte[] bytes) throws IOException {
+        Files.createFile(file, owner(file, "rw-------"));
+        Files.write(file, bytes, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static void heartbeat() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (Path lease : HELD) {
+            try {
+                Files.setLastModifiedTime(lease, now);
+            } catch (IOException e) {
+                // taken over or deleted: the holder finds out before it commits
+            }
+        }
+    }
+
+    /**
+     * Touches {@code file} every {@link #HEARTBEAT} until it is released.
+     */
+    static void hold(Path file) {
+        HELD.add(file);
+    }
+
+    static void release(Path file) {
+        HELD.remove(file);
+    }
+
+    /**
+     * Processes one chunk of a request file.
+     */
+    public interface Processor {
+        /**
+         * @param name the name of the original request file
+         * @param content the chunk
+         * @param result the result file for the chunk
+         * @param log the log file for the chunk, or {@code null}
+         */
+        void process(String name, String content, Path result, Path log) throws IOException;
+
+        /**
+         * Returns {@code false} once the worker running this processor should stop.
+         */
+        default boolean active() {
+            return true;
+        }
+    }
+
+    /**
+     * The chunks of a request file and the earlier chunks each depends on.
+     */
+    public static class Plan {
+        private final List<String> chunks = new ArrayList<>();
+        private final List<Set<Integer>> after = new ArrayList<>();
+        private final Map<String,List<Integer>> providers = new HashMap<>();
+        private final boolean sequential;
+
+        private Plan(boolean sequential) {
+            this.sequential = sequential;
+        }
+
+        private void add(String chunk, Set<String> provides, Set<String> uses) {
+            int index = chunks.size();
+            Set<Integer> dependencies = new TreeSet<>();
+            if (sequential && index > 0) {
+                dependencies.add(index-1);
+            }
+            for (String key : uses) {
+                dependencies.addAll(providers.getOrDefault(key, Collections.emptyList()));
+            }
+            chunks.add(chunk);
+            after.add(dependencies);
+            for (String key : provides) {
+                providers.computeIfAbsent(key, k -> new ArrayList<>()).add(index);
+            }
+        }
+
+        public int size() {
+            return chunks.size();
+        }
+
+        public String chunk(int index) {
+            return chunks.get(index);
+        }
+
+        public Set<Integer> after(int index) {
+            return after.get(index);
+        }
+    }
+
+    private static boolean add(String operation, Operation defaultOperation) {
+        if (operation.isEmpty()) {
+            return defaultOperation == null || defaultOperation == Operation.add;
+        }
+        return operation.equals(Operation.add.name());
+    }
+
+    /**
+     * Splits YAML or JSON requests into chunks of {@code size} requests.
+     * @param requests the parsed requests (see {@link ActionRunner#requests(String)})
+     * @param size the maximum number of requests per chunk
+     * @param defaultOperation the operation of requests without one, {@code null} for {@code add}
+     * @param mapper the mapper for the format of the request file
+     * @param header a header to repeat at the top of each chunk, e.g. a priority comment
+     * @return the plan, or {@code null} if the requests fit in one chunk
+     */
+    public static Plan requests(List<ObjectNode> requests, int size, Operation defaultOperation, ObjectMapper mapper,
+            String header) throws IOException {
+        if (requests == null || size <= 0 || requests.size() <= size) {
+            return null;
+        }
+        Plan plan = new Plan(!requests.stream().allMatch(r -> add(r.path("operation").asText(""), defaultOperation)));
+        for (List<ObjectNode> chunk : Lists.partition(requests, size)) {
+            Set<String> provides = new HashSet<>();
+            Set<String> uses = new HashSet<>();
+            for (ObjectNode request : chunk) {
+                String username = request.path("username").asText("");
+                String connection = request.path("connection").asText("");
+                String authenticator = request.path("authenticator").asText("");
+                if (request.has("action")) {
+                    if (!username.isEmpty()) {
+                        uses.add("user:"+username);
+                    }
+                    if (!connection.isEmpty()) {
+                        uses.add("connection:"+connection);
+                    }
+                } else if (!username.isEmpty()) {
+                    provides.add("user:"+username);
+                    if (!authenticator.isEmpty()) {
+                        uses.add("authenticator:"+authenticator);
+                    }
+                } else if (!connection.isEmpty()) {
+                    provides.add("connection:"+connection);
+                } else if (!authenticator.isEmpty()) {
+                    provides.add("authenticator:"+authenticator);
+                }
+            }
+            plan.add(header+mapper.writeValueAsString(chunk), provides, uses);
+        }
+        return plan;
+    }
+
+    /**
+     * Splits a CSV request file into chunks of {@code size} rows, each with
+     * the header line.
+     * @param content the CSV content
+     * @param size the maximum number of rows per chunk
+     * @param defaultOperation the operation of rows without one, {@code null} for {@code add}
+     * @param header a header to repeat at the top of each chunk, e.g. a priority comment
+     * @return the plan, or {@code null} if the rows fit in one chunk
+     */
+    public static Plan csv(String content, int size, Operation defaultOperation, String header) {
+        List<String> records = records(content);
+        if (size <= 0 || records.size()-1 <= size) {
+            return null;
+        }
+        String columns = records.get(0);
+        int host = fields(columns).indexOf("Host");
+        int operation = Iterables.indexOf(fields(columns), column -> column.trim().equalsIgnoreCase("operation"));
+        boolean sequential = false;
+        for (String row : records.subList(1, records.size())) {
+            List<String> fields = operation < 0 ? Collections.emptyList() : fields(row);
+            if (!add(operation >= 0 && operation < fields.size() ? fields.get(operation).trim() : "",
+                    defaultOperation)) {
+                sequential = true;
+                break;
+            }
+        }
+        Set<String> seen = new HashSet<>();
+        Plan plan = new Plan(sequential);
+        for (List<String> rows : Lists.partition(records.subList(1, records.size()), size)) {
+            StringBuilder sb = new StringBuilder(header).append(columns);
+            Set<String> provides = new HashSet<>();
+            Set<String> uses = new HashSet<>();
+            for (String row : rows) {
+                sb.append(row);
+                List<String> fields = host < 0 ? Collections.emptyList() : fields(row);
+                if (host >= 0 && host < fields.size() && !fields.get(host).trim().isEmpty()) {
+                    String value = fields.get(host).trim();
+                    if (seen.add(value)) {
+                        provides.add(value);
+                    } else {
+                        uses.add(value);
+                    }
+                }
+            }
+            plan.add(sb.toString(), provides, uses);
+        }
+        return plan;
+    }
+
+    /**
+     * Splits CSV content into records, each with its line ending, keeping
+     * quoted line breaks within their record.
+     */
+    static List<String> records(String content) {
+        List<String> records = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '\n' && !quoted) {
+                if (content.substring(start, i).trim().length() > 0) {
+                    records.add(content.substring(start, i+1));
+                }
+                start = i+1;
+            }
+        }
+        if (content.substring(start).trim().length() > 0) {
+            records.add(content.substring(start)+"\n");
+        }
+        return records;
+    }
+
+    /**
+     * Splits a CSV record into its (unquoted) fields.
+     */
+    static List<String> fields(String record) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        String line = record.replaceFirst("\\r?\\n\\z", "");
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i+1 < line.length() && line.charAt(i+1) == '"') {
+                    field.append(c);
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * A lease on a chunk (or on the job itself, or its merge), touched by
+     * the heartbeat until it is closed.
+     */
+    public static class Lease implements AutoCloseable {
+        private final Path file;
+        private final String prefix;
+        private final int index;
+        private final int generation;
+
+        private Lease(Path file, String prefix, int index, int generation) {
+            this.file = file;
+            this.prefix = prefix;
+            this.index = index;
+            this.generation = generation;
+            hold(file);
+        }
+
+        public int index() {
+            return index;
+        }
+
+        /**
+         * Returns {@code true} unless the lease has been taken over.
+         */
+        public boolean current() {
+            return !Files.exists(file.resolveSibling(prefix+".lease."+(generation+1)));
+        }
+
+        @Override
+        public void close() {
+            release(file);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // expires on its own
+            }
+        }
+    }
+
+    private static boolean expired(Path lease) {
+        try {
+            return System.currentTimeMillis()-Files.getLastModifiedTime(lease).toMillis() > EXPIRY;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static String chunk(int index) {
+        return String.format("%05d", index);
+    }
+
+    /**
+     * A request file split into chunks.
+     */
+    public static class Job implements AutoCloseable {
+        private final Path workdir;
+        private final Path dir;
+        private final String name;
+        private final OutputFormat format;
+        private final boolean gzip;
+        private final String output;
+        private final String log;
+        private final List<String> files;
+        private final List<Set<Integer>> after;
+        private Lease owner;
+
+        private Job(Path workdir, Path dir, JsonNode manifest) {
+            this.workdir = workdir;
+            this.dir = dir;
+            this.name = manifest.path("name").asText();
+            this.format = OutputFormat.valueOf(manifest.path("format").asText(OutputFormat.yaml.name()));
+            this.gzip = manifest.path("gzip").asBoolean(false);
+            this.output = manifest.path("output").asText();
+            this.log = manifest.path("log").asText(null);
+            this.files = new ArrayList<>();
+            this.after = new ArrayList<>();
+            for (JsonNode chunk : manifest.path("chunks")) {
+                files.add(chunk.path("file").asText());
+                Set<Integer> dependencies = new TreeSet<>();
+                for (JsonNode dependency : chunk.path("after")) {
+                    dependencies.add(dependency.asInt());
+                }
+                after.add(dependencies);
+            }
+            this.owner = null;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public int size() {
+            return files.size();
+        }
+
+        private Path result(int index) {
+            return dir.resolve(chunk(index)+".result");
+        }
+
+        private Path error(int index) {
+            return dir.resolve(chunk(index)+".error");
+        }
+
+        private Path log(int index) {
+            return dir.resolve(chunk(index)+".log");
+        }
+
+        public boolean done(int index) {
+            return Files.exists(result(index)) || Files.exists(error(index)) ||
+                    !Files.exists(dir.resolve(files.get(index)));
+        }
+
+        public boolean done() {
+            for (int i = 0; i < size(); i++) {
+                if (!done(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns {@code true} if the node that submitted the request file
+         * no longer holds its lease on the job.
+         */
+        public boolean abandoned() {
+            Integer generation = generations().get("job");
+            return generation == null || expired(dir.resolve("job.lease."+generation));
+        }
+
+        private Map<String,Integer> generations() {
+            Map<String,Integer> generations = new HashMap<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*.lease.*")) {
+                for (Path entry : entries) {
+                    Matcher m = LEASE.matcher(entry.getFileName().toString());
+                    if (m.matches()) {
+                        generations.merge(m.group(1), Integer.valueOf(m.group(2)), Math::max);
+                    }
+                }
+            } catch (IOException e) {
+                // nothing to claim
+            }
+            return generations;
+        }
+
+        private Lease acquire(String prefix, int index, Map<String,Integer> generations) throws IOException {
+            Integer current = generations.get(prefix);
+            if (current != null && !expired(dir.resolve(prefix+".lease."+current))) {
+                return null;
+            }
+            int next = current == null ? 1 : current+1;
+            Path file = dir.resolve(prefix+".lease."+next);
+            try {
+                Files.createFile(file);
+            } catch (FileAlreadyExistsException e) {
+                return null;
+            }
+            return new Lease(file, prefix, index, next);
+        }
+
+        /**
+         * Claims the first chunk that is neither done, leased, nor waiting
+         * for an earlier chunk.
+         * @return the lease, or {@code null} if no chunk can be claimed now
+         */
+        public Lease claim() throws IOException {
+            Map<String,Integer> generations = generations();
+            for (int i = 0; i < size(); i++) {
+                if (done(i) || !after.get(i).stream().allMatch(this::done)) {
+                    continue;
+                }
+                Lease lease = acquire(chunk(i), i, generations);
+                if (lease != null) {
+                    return lease;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Claims the merge of an abandoned job.
+         * @return the lease, or {@code null} if another node is merging
+         */
+        public Lease claimMerge() throws IOException {
+            return acquire("merge", -1, generations());
+        }
+
+        /**
+         * Processes a claimed chunk and commits its result, unless the lease
+         * was taken over in the meantime. A chunk that fails is committed
+         * as an error, to be reported in the merged results. The chunk itself
+         * is removed once committed, since it is never processed again.
+         * @param lease the lease on the chunk, closed when done
+         * @param processor the processor
+         */
+        public void process(Lease lease, Processor processor) throws IOException {
+            try {
+                int index = lease.index();
+                String content = new String(Files.readAllBytes(dir.resolve(files.get(index))), StandardCharsets.UTF_8);
+                Path result = dir.resolve(chunk(index)+".result."+lease.generation);
+                Path chunkLog = log == null ? null : dir.resolve(chunk(index)+".log."+lease.generation);
+                try {
+                    processor.process(name, content, result, chunkLog);
+                } catch (IOException | RuntimeException e) {
+                    if (lease.current()) {
+                        String message = String.format("chunk %d of %d not processed: %s", index+1, size(),
+                                e.getMessage());
+                        Files.write(error(index), message.getBytes(StandardCharsets.UTF_8));
+                        Files.deleteIfExists(dir.resolve(files.get(index)));
+                    }
+                    Files.deleteIfExists(result);
+                    return;
+                }
+                if (lease.current()) {
+                    if (chunkLog != null && Files.exists(chunkLog)) {
+                        Files.move(chunkLog, log(index), StandardCopyOption.ATOMIC_MOVE,
+                                StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    Files.move(result, result(index), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    Files.deleteIfExists(dir.resolve(files.get(index)));
+                } else {
+                    Files.deleteIfExists(result);
+                    if (chunkLog != null) {
+                        Files.deleteIfExists(chunkLog);
+                    }
+                }
+            } finally {
+                lease.close();
+            }
+        }
+
+        /**
+         * Merges the chunk results, in order, into the result file (and the
+         * chunk logs into the log file), and then removes them.
+         */
+        public void merge() throws IOException {
+            if (Files.exists(dir.resolve(MERGED))) {
+                return; // merged before the node that merged it failed
+            }
+            try (OutputStream file = Files.newOutputStream(workdir.resolve(output));
+                    PrintStream out = new PrintStream(gzip ? new GZIPOutputStream(file, 64 * 1024) : file);
+                    ResultWriter writer = new ResultWriter(out, format)) {
+                for (int i = 0; i < size(); i++) {
+                    if (Files.exists(result(i))) {
+                        byte[] bytes = Files.readAllBytes(result(i));
+                        writer.append(Compression.read(new ByteArrayInputStream(bytes),
+                                Compression.detect(new ByteArrayInputStream(bytes)), Charset.defaultCharset(),
+                                bytes.length));
+                    } else if (format != OutputFormat.csv && Files.exists(error(i))) {
+                        ObjectNode error = ResultWriter.YAML.createObjectNode();
+                        error.putObject("result").put("status", "error")
+                            .put("message", new String(Files.readAllBytes(error(i)), StandardCharsets.UTF_8));
+                        ArrayNode errors = ResultWriter.YAML.createArrayNode().add(error);
+                        writer.append(errors);
+                    }
+                }
+            }
+            if (log != null) {
+                try (OutputStream out = Files.newOutputStream(workdir.resolve(log))) {
+                    for (int i = 0; i < size(); i++) {
+                        if (Files.exists(log(i))) {
+                            Files.copy(log(i), out);
+                        }
+                        if (Files.exists(error(i))) {
+                            Files.copy(error(i), out);
+                            out.write('\n');
+                        }
+                    }
+                }
+            }
+            Files.createFile(dir.resolve(MERGED));
+            for (int i = 0; i < size(); i++) {
+                Files.deleteIfExists(result(i));
+                Files.deleteIfExists(error(i));
+                Files.deleteIfExists(log(i));
+            }
+        }
+
+        /**
+         * Releases the submitter's lease and removes the job directory.
+         */
+        @Override
+        public void close() throws IOException {
+            if (owner != null) {
+                owner.close();
+                owner = null;
+            }
+            if (Files.exists(dir)) {
+                try (Stream<Path> entries = Files.walk(dir)) {
+                    for (Path entry : (Iterable<Path>) entries.sorted(Comparator.reverseOrder())::iterator) {
+                        Files.deleteIfExists(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the chunks of a request file to the shared working directory,
+     * held by the calling node until the job is closed.
+     * @param workdir the shared working directory
+     * @param name the request file name
+     * @param plan the chunks
+     * @param format the result format
+     * @param gzip {@code true} to compress the merged result file
+     * @param outputFile the result file, within {@code workdir}
+     * @param logFile the log file, within {@code workdir}, or {@code null}
+     * @return the job
+     */
+    public static Job create(Path workdir, String name, Plan plan, OutputFormat format, boolean gzip,
+            Path outputFile, Path logFile) throws IOException {
+        Path root = workdir.resolve(DIRECTORY);
+        Files.createDirectories(root);
+        Path dir = Files.createDirectory(root.resolve(UUID.randomUUID().toString()), owner(root, "rwx------"));
+        String ext = name.replaceFirst("^.*?(\\.[^.]*)?$", "$1");
+        ObjectNode manifest = ResultWriter.JSON.createObjectNode()
+                .put("name", name)
+                .put("format", format.name())
+                .put("gzip", gzip)
+                .put("output", workdir.relativize(outputFile).toString());
+        if (logFile != null) {
+            manifest.put("log", workdir.relativize(logFile).toString());
+        }
+        ArrayNode chunks = manifest.putArray("chunks");
+        for (int i = 0; i < plan.size(); i++) {
+            String file = chunk(i)+ext;
+            write(dir.resolve(file), plan.chunk(i).getBytes(StandardCharsets.UTF_8));
+            ObjectNode chunk = chunks.addObject().put("file", file);
+            ArrayNode after = chunk.putArray("after");
+            plan.after(i).forEach(after::add);
+        }
+        Path tmp = dir.resolve(MANIFEST+".tmp");
+        Files.write(tmp, ResultWriter.JSON.writeValueAsBytes(manifest), StandardOpenOption.CREATE_NEW);
+        Job job = new Job(workdir, dir, manifest);
+        job.owner = job.acquire("job", -1, Collections.emptyMap());
+        Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE);
+        return job;
+    }
+
+    /**
+     * Returns the jobs in the shared working directory.
+     */
+    public static List<Job> jobs(Path workdir) {
+        List<Job> jobs = new ArrayList<>();
+        Path root = workdir.resolve(DIRECTORY);
+        if (Files.isDirectory(root)) {
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path dir : dirs) {
+                    try {
+                        jobs.add(new Job(workdir, dir, ResultWriter.JSON.readTree(dir.resolve(MANIFEST).toFile())));
+                    } catch (NoSuchFileException e) {
+                        // not yet complete, or just removed
+                    } catch (IOException e) {
+                        // removed while reading
+                    }
+                }
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Starts the chunk worker for {@code workdir}, unless it is already
+     * running in this JVM, in which case it continues with {@code processor}.
+     * The worker processes one chunk at a time from any job, and merges the
+     * jobs abandoned by their submitter. It stops once {@link #stop(Path)} is
+     * called or its processor is no longer {@link Processor#active()}.
+     * @param workdir the shared working directory
+     * @param processor the processor for chunks
+     */
+    public static void start(Path workdir, Processor processor) {
+        Path dir = workdir.toAbsolutePath().normalize();
+        if (WORKERS.put(dir, processor) == null) {
+            Thread t = new Thread(() -> work(dir), "batchapi-chunks");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Stops the chunk worker for {@code workdir} once it finishes its
+     * current chunk.
+     * @param workdir the shared working directory
+     */
+    public static void stop(Path workdir) {
+        WORKERS.remove(workdir.toAbsolutePath().normalize());
+    }
+
+    private static void work(Path workdir) {
+        while (!Thread.currentThread().isInterrupted()) {
+            Processor processor = WORKERS.get(workdir);
+            if (processor == null) {
+                return;
+            } else if (!processor.active()) {
+                WORKERS.remove(workdir, processor);
+                continue;
+            }
+            boolean busy = false;
+            for (Job job : jobs(workdir)) {
+                try {
+                    Lease lease = job.claim();
+                    if (lease != null) {
+                        job.process(lease, processor);
+                        busy = true;
+                        break;
+                    } else if (job.abandoned() && job.done()) {
+                        try (Lease merge = job.claimMerge()) {
+                            if (merge != null) {
+                                job.merge();
+                                job.close();
+                            }
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // the job was removed, or its chunk is retried when the lease expires
+                }
+            }
+            if (!busy) {
+                try {
+                    Thread.sleep(POLL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
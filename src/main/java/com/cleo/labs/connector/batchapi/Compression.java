@@ -0,0 +1,104 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.google.common.io.CharStreams;
+
+/**
+ * Detection and streaming decoding of compressed request files.
+ * <p>
+ * The format is detected from the leading bytes of the file (its magic
+ * number), so a file is decoded correctly whatever its name; the
+ * {@code .gz} or {@code .zip} suffix is removed from the name to find the
+ * request format and the result file name.
+ */
+public class Compression {
+
+    public enum Format {none, gzip, zip}
+
+    private static final int BUFFER = 64 * 1024;
+
+    private Compression() {}
+
+    /**
+     * Detects the format from the first bytes of {@code in}.
+     * @param in the request file content (the stream is consumed)
+     * @return the format
+     */
+    public static Format detect(InputStream in) throws IOException {
+        int b0 = in.read();
+        int b1 = in.read();
+        int b2 = in.read();
+        int b3 = in.read();
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return Format.gzip;
+        } else if (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4) {
+            return Format.zip;
+        }
+        return Format.none;
+    }
+
+    /**
+     * Removes a {@code .gz}, {@code .gzip} or {@code .zip} suffix from a
+     * file name, e.g. {@code users.yaml.gz} to {@code users.yaml}.
+     */
+    public static String strip(String name) {
+        return name.replaceFirst("(?i)\\.(gz|gzip|zip)$", "");
+    }
+
+    /**
+     * Decodes {@code in}, inflating it if needed, directly into a String
+     * without first inflating it into a byte array.
+     * @param in the request file content
+     * @param format the detected format ({@code none} or {@code gzip})
+     * @param charset the character set of the request file
+     * @param sizeHint the expected number of characters, or {@code 0}
+     * @return the decoded content
+     */
+    public static String read(InputStream in, Format format, Charset charset, int sizeHint) throws IOException {
+        InputStream decoded = format == Format.gzip ? new GZIPInputStream(in, BUFFER) : in;
+        StringBuilder sb = new StringBuilder(Math.max(16, sizeHint));
+        CharStreams.copy(new InputStreamReader(decoded, charset), sb);
+        return sb.toString();
+    }
+
+    /**
+     * Receives the request files in a zip archive.
+     */
+    public interface EntryHandler {
+        void entry(String name, String content) throws IOException;
+    }
+
+    /**
+     * Decodes the request files in a zip archive in sequence, passing each
+     * to {@code handler} as soon as it is decoded. Directories and hidden
+     * files (including {@code __MACOSX} metadata) are skipped.
+     * @param in the zip archive
+     * @param charset the character set of the request files
+     * @param handler the handler for each request file
+     */
+    public static void entries(InputStream in, Charset charset, EntryHandler handler) throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(in)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = Paths.get(entry.getName()).getFileName().toString();
+                if (entry.isDirectory() || name.startsWith(".") || entry.getName().startsWith("__MACOSX/")) {
+                    continue;
+                }
+                StringBuilder sb = new StringBuilder(entry.getSize() > 0 && entry.getSize() < Integer.MAX_VALUE
+                        ? (int) entry.getSize() : BUFFER);
+                Reader reader = new InputStreamReader(zip, charset);
+                CharStreams.copy(reader, sb);
+                handler.entry(name, sb.toString());
+            }
+        }
+    }
+}
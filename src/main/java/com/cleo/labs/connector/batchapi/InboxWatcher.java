@@ -0,0 +1,262 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Processes request files dropped into the {@code in} folder of the working
+ * directory, without a Harmony {@code PUT}.
+ * <p>
+ * The folder is watched with a {@link WatchService} and also scanned every
+ * {@link #POLL}, since file system events are not delivered for files
+ * written by other hosts to a shared (e.g. NFS) folder. A file is ready once
+ * it has not been modified for {@link #SETTLE}, and is then claimed by
+ * atomically moving it to {@code in/.claimed}, so that each file is processed
+ * once even if several nodes of a cluster watch the same folder. The claimed
+ * file is processed in place and removed once its results are written; a
+ * file that could not be processed is moved to {@code in/.failed}.
+ * <p>
+ * Like a chunk lease (see {@link ChunkQueue}), a claim is stamped with the
+ * time it was made and touched by its holder every
+ * {@link ChunkQueue#HEARTBEAT}. A claim that has not been touched for
+ * {@link ChunkQueue#EXPIRY}, because its node crashed, is claimed again
+ * and processed by another node.
+ */
+public class InboxWatcher {
+
+    public static final String INBOX = "in";
+    public static final String CLAIMED = ".claimed";
+    public static final String FAILED = ".failed";
+    public static final long POLL = TimeUnit.SECONDS.toMillis(5);
+    public static final long SETTLE = TimeUnit.SECONDS.toMillis(2);
+
+    private static final Pattern CLAIM = Pattern.compile("(\\d+)-[0-9a-f-]{36}-(.*)");
+    private static final Map<Path,Handler> WATCHERS = new ConcurrentHashMap<>();
+
+    private final Path inbox;
+    private final Path claimed;
+    private final Path failed;
+    private final Handler handler;
+
+    /**
+     * Processes a claimed request file.
+     */
+    public interface Handler {
+        /**
+         * @param file the claimed file
+         * @param name the name of the file as dropped into the inbox
+         */
+        void process(Path file, String name) throws IOException;
+
+        /**
+         * Returns {@code false} once the watcher running this handler should stop.
+         */
+        default boolean active() {
+            return true;
+        }
+    }
+
+    /**
+     * Starts watching the inbox of {@code workdir}, unless it is already
+     * watched in this JVM, in which case the watcher continues with
+     * {@code handler}. The watcher stops once {@link #stop(Path)} is called
+     * or its handler is no longer {@link Handler#active()}.
+     * @param workdir the working directory
+     * @param handler the handler for each request file
+     */
+    public static void start(Path workdir, Handler handler) {
+        Path dir = workdir.toAbsolutePath().normalize();
+        if (WATCHERS.put(dir, handler) == null) {
+            Thread t = new Thread(() -> new InboxWatcher(dir, null).watch(), "batchapi-inbox");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Stops watching the inbox of {@code workdir} once the current file is
+     * processed.
+     * @param workdir the working directory
+     */
+    public static void stop(Path workdir) {
+        WATCHERS.remove(workdir.toAbsolutePath().normalize());
+    }
+
+    /**
+     * @param workdir the working directory
+     * @param handler the handler, or {@code null} for the one registered by {@link #start(Path, Handler)}
+     */
+    InboxWatcher(Path workdir, Handler handler) {
+        this.inbox = workdir.resolve(INBOX);
+        this.claimed = inbox.resolve(CLAIMED);
+        this.failed = inbox.resolve(FAILED);
+        this.handler = handler;
+    }
+
+    private static boolean candidate(Path file) {
+        String name = file.getFileName().toString();
+        return !name.startsWith(".") && !name.endsWith(".tmp") && !name.endsWith(".part") &&
+                Files.isRegularFile(file);
+    }
+
+    private static boolean expired(Path claim) {
+        Matcher m = CLAIM.matcher(claim.getFileName().toString());
+        try {
+            long touched = Math.max(Long.parseLong(m.matches() ? m.group(1) : "0"),
+                    Files.getLastModifiedTime(claim).toMillis());
+            return System.currentTimeMillis()-touched > ChunkQueue.EXPIRY;
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Claims {@code file} by moving it to the claimed folder.
+     * @return the claim, or {@code null} if another node claimed it first
+     */
+    private Path claim(Path file, String name) throws IOException {
+        Path claim = claimed.resolve(System.currentTimeMillis()+"-"+UUID.randomUUID()+"-"+name);
+        try {
+            Files.move(file, claim, StandardCopyOption.ATOMIC_MOVE);
+            return claim;
+        } catch (NoSuchFileException | FileAlreadyExistsException e) {
+            return null;
+        }
+    }
+
+    private void process(Handler handler, Path claim, String name) {
+        ChunkQueue.hold(claim);
+        try {
+            handler.process(claim, name);
+            Files.deleteIfExists(claim);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.createDirectories(failed);
+                Files.move(claim, failed.resolve(claim.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ignore) {
+                // left in the claimed folder
+            }
+        } finally {
+            ChunkQueue.release(claim);
+        }
+    }
+
+    /**
+     * Claims and processes the files in the inbox that are ready, and the
+     * claims of other nodes that have expired.
+     * @return {@code true} if files were left because they are still being written
+     */
+    boolean scan() {
+        Handler handler = this.handler != null ? this.handler : WATCHERS.get(inbox.getParent());
+        if (handler == null) {
+            return false;
+        }
+        boolean pending = false;
+        try {
+            Files.createDirectories(claimed);
+        } catch (IOException e) {
+            return false; // the working directory is not available: try again on the next scan
+        }
+        try (DirectoryStream<Path> claims = Files.newDirectoryStream(claimed, InboxWatcher::expired)) {
+            for (Path expired : claims) {
+                Matcher m = CLAIM.matcher(expired.getFileName().toString());
+                String name = m.matches() ? m.group(2) : expired.getFileName().toString();
+                Path claim = claim(expired, name);
+                if (claim != null) {
+                    process(handler, claim, name);
+                }
+            }
+        } catch (IOException e) {
+            // try again on the next scan
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(inbox, InboxWatcher::candidate)) {
+            for (Path file : files) {
+                try {
+                    if (System.currentTimeMillis()-Files.getLastModifiedTime(file).toMillis() < SETTLE) {
+                        pending = true;
+                        continue;
+                    }
+                    String name = file.getFileName().toString();
+                    Path claim = claim(file, name);
+                    if (claim != null) {
+                        process(handler, claim, name);
+                    }
+                } catch (IOException e) {
+                    // removed or claimed by another node
+                }
+            }
+        } catch (IOException e) {
+            // try again on the next scan
+        }
+        return pending;
+    }
+
+    /**
+     * Returns {@code true} while this watcher has a handler that is active.
+     */
+    private boolean active() {
+        Path workdir = inbox.getParent();
+        Handler handler = WATCHERS.get(workdir);
+        if (handler != null && !handler.active()) {
+            WATCHERS.remove(workdir, handler);
+            return active();
+        }
+        return handler != null;
+    }
+
+    private void watch() {
+        WatchService watcher = null;
+        try {
+            Files.createDirectories(inbox);
+            watcher = inbox.getFileSystem().newWatchService();
+            inbox.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException ignore) {
+                    // scan only
+                }
+            }
+            watcher = null; // scan only
+        }
+        try {
+            while (!Thread.currentThread().isInterrupted() && active()) {
+                long wait = scan() ? SETTLE : POLL;
+                if (watcher == null) {
+                    Thread.sleep(wait);
+                } else {
+                    WatchKey key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.cleo.labs.connector.batchapi.processor.ApiClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+
+/**
+ * An {@link ApiClient} that records the outcome and latency of each REST
+ * call it makes in the {@link ProfileHealth} of its server, and a
+ * {@link Tracer} span for each call: the method, path, outcome, latency
+ * and payload sizes. The authentication made when the client is created is
+ * recorded the same way by {@link #connect(Profile, Tracer)}.
+ * <p>
+ * A call is admitted only while the server's circuit allows it. A call
+ * that fails with an I/O error (the server could not be reached, or did
+ * not answer) counts as a failure of the server; any other outcome, an
+ * error response included, shows that the server is answering.
+ */
+public class InstrumentedApiClient extends ApiClient {
+
+    private final Tracer tracer;
+    private final ProfileHealth health;
+
+    /**
+     * A REST call of the underlying client.
+     */
+    private interface Call<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * Creates (and so authenticates) a client for {@code profile}.
+     * @param profile the profile to connect to
+     * @param tracer the tracer for the request file
+     * @return the client
+     * @throws Exception if the server's circuit is open or the client can not be created
+     */
+    public static InstrumentedApiClient connect(Profile profile, Tracer tracer) throws Exception {
+        ProfileHealth health = ProfileHealth.of(profile.url());
+        return record(tracer, health, "POST", "/api/authentication", null,
+                () -> new InstrumentedApiClient(profile, tracer, health));
+    }
+
+    private InstrumentedApiClient(Profile profile, Tracer tracer, ProfileHealth health) throws Exception {
+        super(profile.url(), profile.user(), profile.password(), profile.ignoreTLSChecks());
+        this.tracer = tracer;
+        this.health = health;
+    }
+
+    static String message(Exception e) {
+        return Strings.isNullOrEmpty(e.getMessage()) ? e.toString() : e.getMessage();
+    }
+
+    private static int size(Object payload) {
+        return payload == null ? 0 : payload.toString().length();
+    }
+
+    static boolean unreachable(Exception e) {
+        return Throwables.getCausalChain(e).stream().anyMatch(cause -> cause instanceof IOException);
+    }
+
+    private static <T> T record(Tracer tracer, ProfileHealth health, String method, String path, JsonNode body,
+            Call<T> call) throws Exception {
+        health.admit();
+        try (Tracer.Span span = tracer.span("api", method+" "+path)) {
+            if (tracer.enabled() && body != null) {
+                span.arg("requestChars", size(body));
+            }
+            long start = System.nanoTime();
+            try {
+                T result = call.call();
+                health.success(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                if (tracer.enabled()) {
+                    span.arg("status", "success");
+                    if (result instanceof JsonNode) {
+                        span.arg("responseChars", size(result));
+                    }
+                }
+                return result;
+            } catch (Exception e) {
+                if (unreachable(e)) {
+                    health.failure(message(e));
+                } else {
+                    health.success(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+                span.arg("status", "error").arg("error", message(e));
+                throw e;
+            }
+        }
+    }
+
+    private <T> T record(String method, String path, JsonNode body, Call<T> call) throws Exception {
+        return record(tracer, health, method, path, body, call);
+    }
+
+    @Override
+    public ObjectNode get(String path) throws Exception {
+        return record("GET", path, null, () -> super.get(path));
+    }
+
+    @Override
+    public ObjectNode post(JsonNode json, String path) throws Exception {
+        return record("POST", path, json, () -> super.post(json, path));
+    }
+
+    @Override
+    public ObjectNode put(JsonNode json, String path) throws Exception {
+        return record("PUT", path, json, () -> super.put(json, path));
+    }
+
+    @Override
+    public boolean delete(String path) throws Exception {
+        return record("DELETE", path, null, () -> super.delete(path));
+    }
+}
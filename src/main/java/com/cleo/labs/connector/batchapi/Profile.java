@@ -13,6 +13,7 @@ public class Profile {
     private String password;
     @SerializedName("ignoretlschecks")
     private boolean ignoreTLSChecks;
+    private Integer weight;
 
     public Profile() {
         this.enabled = false;
@@ -21,6 +22,7 @@ public class Profile {
         this.user = null;
         this.password = null;
         this.ignoreTLSChecks = false;
+        this.weight = null;
     }
 
     public boolean enabled() {
@@ -65,6 +67,18 @@ public class Profile {
         this.ignoreTLSChecks = ignoreTLSChecks;
         return this;
     }
+    /**
+     * The relative share of requests for this profile among enabled
+     * profiles of the same name (see {@link ProfilePool}).
+     * @return the weight, at least 1
+     */
+    public int weight() {
+        return weight == null || weight < 1 ? 1 : weight;
+    }
+    public Profile weight(int weight) {
+        this.weight = weight;
+        return this;
+    }
 
     public ApiClient toApiClient() throws Exception {
         return new ApiClient(url, user, password, ignoreTLSChecks);
@@ -0,0 +1,192 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Strings;
+
+/**
+ * Health of the Harmony server behind a profile URL, with a circuit
+ * breaker.
+ * <p>
+ * The outcome and latency of every REST call to the server is recorded
+ * (see {@link InstrumentedApiClient}), along with background TCP connect
+ * {@link #probe()}s started when a batch leases the profile, and
+ * {@link #FAILURE_THRESHOLD} consecutive failures to reach the server (a
+ * failed probe, or a call failing with an I/O error) open the circuit.
+ * While the circuit is open, {@link #available()}
+ * is {@code false} and requests for the profile fail immediately instead
+ * of waiting out connect and read timeouts. A background probe retries
+ * the server after a cool-down (doubling up to {@link #MAX_COOLDOWN}) and
+ * half-opens the circuit when it answers, letting one request through to
+ * close it again.
+ * <p>
+ * Health is kept in a static registry by URL, so it is shared by all PUTs
+ * on the connector host.
+ */
+public class ProfileHealth {
+
+    public static final int FAILURE_THRESHOLD = 3;
+    public static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+    public static final long PROBE_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    public static final long MIN_COOLDOWN = TimeUnit.SECONDS.toMillis(15);
+    public static final long MAX_COOLDOWN = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Map<String,ProfileHealth> HEALTH = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService PROBES = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "batchapi-health");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public enum State {closed, open, halfOpen}
+
+    private final String url;
+    private State state;
+    private int failures;
+    private long latency;
+    private long lastSuccess;
+    private long cooldown;
+    private boolean trial;
+    private boolean probing;
+    private String lastError;
+
+    /**
+     * Returns the shared health of the server at {@code url}.
+     * @param url the profile URL
+     * @return the health, never {@code null}
+     */
+    public static ProfileHealth of(String url) {
+        return HEALTH.computeIfAbsent(Strings.nullToEmpty(url), ProfileHealth::new);
+    }
+
+    private ProfileHealth(String url) {
+        this.url = url;
+        this.state = State.closed;
+        this.failures = 0;
+        this.latency = -1;
+        this.lastSuccess = 0;
+        this.cooldown = MIN_COOLDOWN;
+        this.trial = false;
+        this.probing = false;
+        this.lastError = null;
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    /**
+     * Returns {@code true} unless the circuit is open, or half-open with its
+     * trial request already taken.
+     */
+    public synchronized boolean available() {
+        return state == State.closed || (state == State.halfOpen && !trial);
+    }
+
+    /**
+     * Admits a request: always when closed, once when half-open.
+     * @throws Exception if the circuit is open
+     */
+    public synchronized void admit() throws Exception {
+        if (state == State.halfOpen && !trial) {
+            trial = true;
+        } else if (state != State.closed) {
+            throw new Exception(url+" is unavailable after "+failures+(failures == 1 ? " failure" : " failures")+
+                    (lastError == null ? "" : " ("+lastError+")"));
+        }
+    }
+
+    public synchronized void success(long millis) {
+        latency = latency < 0 ? millis : (latency * 3 + millis) / 4;
+        lastSuccess = System.currentTimeMillis();
+        failures = 0;
+        cooldown = MIN_COOLDOWN;
+        trial = false;
+        state = State.closed;
+    }
+
+    public synchronized void failure(String error) {
+        failures++;
+        lastError = error;
+        trial = false;
+        if (state != State.open && (state == State.halfOpen || failures >= FAILURE_THRESHOLD)) {
+            state = State.open;
+            PROBES.schedule(this::recover, cooldown, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Checks in the background that the server accepts TCP connections,
+     * unless it has been seen to recently or a check is already running.
+     * A failed connect counts as a failure. The caller does not wait for
+     * the check, and should gate on {@link #available()}.
+     */
+    public void probe() {
+        synchronized (this) {
+            if (probing || state != State.closed || System.currentTimeMillis() - lastSuccess < PROBE_INTERVAL) {
+                return;
+            }
+            probing = true;
+        }
+        PROBES.execute(() -> {
+            String error = connect();
+            synchronized (this) {
+                probing = false;
+            }
+            if (error != null) {
+                failure(error);
+            }
+        });
+    }
+
+    private void recover() {
+        String error = connect();
+        synchronized (this) {
+            if (error == null) {
+                state = State.halfOpen;
+                trial = false;
+            } else {
+                lastError = error;
+                cooldown = Math.min(cooldown * 2, MAX_COOLDOWN);
+                PROBES.schedule(this::recover, cooldown, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Attempts a TCP connection to the host and port of the URL.
+     * @return {@code null} on success, otherwise the error
+     */
+    private String connect() {
+        try {
+            URI uri = new URI(url);
+            int port = uri.getPort() >= 0 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+            long start = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(uri.getHost(), port), (int) CONNECT_TIMEOUT);
+            }
+            synchronized (this) {
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                latency = latency < 0 ? millis : (latency * 3 + millis) / 4;
+                lastSuccess = System.currentTimeMillis();
+            }
+            return null;
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            return Strings.isNullOrEmpty(e.getMessage()) ? e.toString() : e.getMessage();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return url+" "+state+(failures > 0 ? " failures="+failures : "")+(latency >= 0 ? " latency="+latency+"ms" : "");
+    }
+}
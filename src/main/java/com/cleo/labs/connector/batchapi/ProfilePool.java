@@ -0,0 +1,229 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+
+/**
+ * The enabled profiles sharing a profile name, e.g. the API nodes of an
+ * active-active Harmony cluster, treated as a pool.
+ * <p>
+ * Each {@link #lease()} selects the member with the fewest outstanding
+ * leases relative to its {@link Profile#weight()}, breaking ties by smooth
+ * weighted round-robin, and holds it until the lease is closed. Pools are
+ * kept in a static registry by name and members so that outstanding leases
+ * are counted across all PUTs on the connector host, while hosts that use
+ * the same profile name for different servers get separate pools. A pool
+ * stays registered, with its round-robin state, until it has had no
+ * outstanding leases for {@link #IDLE_EXPIRY}.
+ */
+public class ProfilePool {
+
+    public static final long IDLE_EXPIRY = TimeUnit.MINUTES.toMillis(30);
+
+    private static final Map<List<String>,ProfilePool> POOLS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final List<Member> members;
+    private long lastUsed;
+    private boolean retired;
+
+    private static class Member {
+        private final Profile profile;
+        private final String node;
+        private final int weight;
+        private int inFlight;
+        private int current;
+
+        private Member(Profile profile) {
+            this.profile = profile;
+            this.node = profile.toString();
+            this.weight = profile.weight();
+            this.inFlight = 0;
+            this.current = 0;
+        }
+    }
+
+    /**
+     * A member of the pool selected for exclusive use by one session (see
+     * {@code BatchAPIProcessor}), so that requests which depend on each
+     * other reach the same node.
+     */
+    public class Lease implements AutoCloseable {
+        private final Member member;
+        private boolean closed;
+
+        private Lease(Member member) {
+            this.member = member;
+            this.closed = false;
+        }
+
+        public Profile profile() {
+            return member.profile;
+        }
+
+        public String node() {
+            return member.node;
+        }
+
+        public ProfilePool pool() {
+            return ProfilePool.this;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ProfilePool.this) {
+                if (!closed) {
+                    closed = true;
+                    member.inFlight--;
+                    lastUsed = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    private static String signature(List<Profile> profiles) {
+        List<String> fields = new ArrayList<>();
+        for (Profile profile : profiles) {
+            fields.add(Joiner.on('\0').useForNull("").join(profile.url(), profile.user(), profile.password(),
+                    profile.ignoreTLSChecks(), profile.weight()));
+        }
+        return Joiner.on('\n').join(fields);
+    }
+
+    /**
+     * Returns the pool for {@code name} and {@code profiles}, creating it
+     * if no such pool is registered.
+     * @param name the profile name ({@code null} for the default profile)
+     * @param profiles the enabled profiles selected for the name, in table order
+     * @return the pool
+     */
+    public static ProfilePool of(String name, List<Profile> profiles) {
+        long now = System.currentTimeMillis();
+        POOLS.forEach((key, pool) -> {
+            if (pool.retire(now)) {
+                POOLS.remove(key, pool);
+            }
+        });
+        return POOLS.compute(Arrays.asList(Strings.nullToEmpty(name), signature(profiles)), (key, pool) -> {
+            if (pool == null || !pool.touch(now)) {
+                pool = new ProfilePool(key.get(0), profiles);
+                pool.touch(now);
+            }
+            return pool;
+        });
+    }
+
+    /**
+     * Marks the pool as used at {@code now}.
+     * @return {@code false} if the pool has been retired
+     */
+    private synchronized boolean touch(long now) {
+        lastUsed = now;
+        return !retired;
+    }
+
+    /**
+     * Retires the pool if it has had no outstanding leases for {@link #IDLE_EXPIRY}.
+     * @return {@code true} if the pool is retired
+     */
+    private synchronized boolean retire(long now) {
+        if (!retired && now - lastUsed > IDLE_EXPIRY) {
+            for (Member member : members) {
+                if (member.inFlight > 0) {
+                    return false;
+                }
+            }
+            retired = true;
+        }
+        return retired;
+    }
+
+    private ProfilePool(String name, List<Profile> profiles) {
+        this.name = name;
+        this.members = new ArrayList<>();
+        this.lastUsed = 0;
+        this.retired = false;
+        for (Profile profile : profiles) {
+            members.add(new Member(profile));
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Leases the least loaded member of the pool.
+     * @return the lease, to be closed when the batch is done with it
+     */
+    public Lease lease() {
+        return lease(profile -> true);
+    }
+
+    /**
+     * Leases the least loaded member of the pool among those accepted by
+     * {@code usable}, e.g. those whose {@link ProfileHealth} is available.
+     * @param usable the filter on members
+     * @return the lease, to be closed when the batch is done with it,
+     *         or {@code null} if no member is usable
+     */
+    public synchronized Lease lease(Predicate<Profile> usable) {
+        List<Member> least = new ArrayList<>();
+        for (Member member : members) {
+            if (!usable.test(member.profile)) {
+                continue;
+            } else if (least.isEmpty()) {
+                least.add(member);
+            } else {
+                // compare inFlight/weight without division
+                long cmp = (long) member.inFlight * least.get(0).weight - (long) least.get(0).inFlight * member.weight;
+                if (cmp < 0) {
+                    least.clear();
+                }
+                if (cmp <= 0) {
+                    least.add(member);
+                }
+            }
+        }
+        if (least.isEmpty()) {
+            return null;
+        }
+        Member selected = null;
+        int total = 0;
+        for (Member member : least) {
+            member.current += member.weight;
+            total += member.weight;
+            if (selected == null || member.current > selected.current) {
+                selected = member;
+            }
+        }
+        selected.current -= total;
+        selected.inFlight++;
+        lastUsed = System.currentTimeMillis();
+        return new Lease(selected);
+    }
+
+    /**
+     * Returns the outstanding leases of each member, in table order.
+     */
+    public synchronized Map<String,Integer> inFlight() {
+        Map<String,Integer> inFlight = new LinkedHashMap<>();
+        for (Member member : members) {
+            inFlight.merge(member.node, member.inFlight, Integer::sum);
+        }
+        return inFlight;
+    }
+}
@@ -64,6 +64,12 @@ public class ProfileTableProperty {
         .setDescription("Select to ignore TLS checks on trusted certificates and hostname matching.")
         .build();
 
+    @Property
+    final IConnectorProperty<Integer> weight = new PropertyBuilder<>("Weight", 1)
+        .setDescription("The relative share of requests sent to this profile when several enabled "+
+                        "profiles have the same name.")
+        .build();
+
     /**
      * Deserialize the JSON array into a Java {@code Profile[]}.
      * @param value the JSON array (may be {@code null})
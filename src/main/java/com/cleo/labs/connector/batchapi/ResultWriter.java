@@ -0,0 +1,125 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.OutputFormat;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.base.Strings;
+
+/**
+ * Merges the results of separately processed parts of a request file into
+ * a single result stream, one part at a time as each part completes.
+ * <p>
+ * Each part is the complete output of a {@code BatchProcessor} run in the
+ * same {@link OutputFormat}: a YAML or JSON list of results, or CSV with a
+ * header line (which is kept from the first part only).
+ */
+public class ResultWriter implements Closeable {
+
+    public static final ObjectMapper YAML = new ObjectMapper(new YAMLFactory());
+    public static final ObjectMapper JSON = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private final PrintStream out;
+    private final OutputFormat format;
+    private int parts;
+    private boolean closed;
+
+    public ResultWriter(PrintStream out, OutputFormat format) {
+        this.out = out;
+        this.format = format;
+        this.parts = 0;
+        this.closed = false;
+    }
+
+    public static ObjectMapper mapper(OutputFormat format) {
+        return format == OutputFormat.json ? JSON : YAML;
+    }
+
+    /**
+     * Appends the output of one part and flushes it to the underlying stream.
+     * Parts appended after {@link #close()} are ignored.
+     * @param part the formatted output of a {@code BatchProcessor} run
+     * @throws IOException if the part can not be parsed (JSON)
+     */
+    public synchronized void append(String part) throws IOException {
+        if (closed || Strings.isNullOrEmpty(part)) {
+            return;
+        }
+        switch (format) {
+        case json:
+            JsonNode node = JSON.readTree(part);
+            if (node != null && node.isArray()) {
+                for (JsonNode result : node) {
+                    appendJson(result);
+                }
+            } else if (node != null) {
+                appendJson(node);
+            }
+            break;
+        case csv:
+            if (parts > 0) {
+                int eol = part.indexOf('\n');
+                part = eol < 0 ? "" : part.substring(eol+1);
+            }
+            out.print(part);
+            parts++;
+            break;
+        case yaml:
+        default:
+            String body = part.replaceFirst("\\A---[^\\n]*\\n", "");
+            if (!body.trim().equals("[]")) {
+                if (parts == 0) {
+                    out.print("---\n");
+                }
+                out.print(body.endsWith("\n") ? body : body+"\n");
+                parts++;
+            }
+            break;
+        }
+        out.flush();
+    }
+
+    /**
+     * Appends results constructed by the connector itself, e.g. errors for
+     * parts that could not be completed.
+     * @param results a list of result objects
+     * @throws IOException if the output format is {@code csv}, which
+     *         requires an output template
+     */
+    public synchronized void append(ArrayNode results) throws IOException {
+        if (format == OutputFormat.csv) {
+            throw new IOException("connector results can not be formatted as csv");
+        } else if (results.size() > 0) {
+            append(mapper(format).writeValueAsString(results));
+        }
+    }
+
+    private void appendJson(JsonNode result) throws IOException {
+        out.print(parts == 0 ? "[ " : ", ");
+        out.print(JSON.writeValueAsString(result));
+        parts++;
+    }
+
+    public synchronized int parts() {
+        return parts;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            if (format == OutputFormat.json) {
+                out.print(parts == 0 ? "[ ]\n" : " ]\n");
+            } else if (format == OutputFormat.yaml && parts == 0) {
+                out.print("--- []\n");
+            }
+            out.flush();
+        }
+    }
+}
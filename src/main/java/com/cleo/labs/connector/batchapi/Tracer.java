@@ -0,0 +1,177 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+
+/**
+ * Minimal span recorder for request processing.  Spans are collected in
+ * memory and written on {@link #close()} in the Trace Event Format, which
+ * can be loaded directly into chrome://tracing or Perfetto.
+ * <p>
+ * A disabled tracer (see {@link #DISABLED} and {@link #sample(int, Path)})
+ * hands out a shared no-op {@link Span}, so tracing calls may be left in
+ * the processing path unconditionally.
+ */
+public class Tracer implements Closeable {
+
+    private static final Gson GSON = new Gson();
+
+    public static final Tracer DISABLED = new Tracer(null);
+
+    private final Path file;
+    private final long originNanos;
+    private final long originMicros;
+    private final List<Map<String,Object>> events;
+
+    /**
+     * Returns an enabled {@code Tracer} writing to {@code file} for
+     * {@code percent}% of calls, otherwise {@link #DISABLED}.
+     * @param percent the sampling rate from 0 (never) to 100 (always)
+     * @param file the trace file to write on {@link #close()}
+     * @return a {@code Tracer}, never {@code null}
+     */
+    public static Tracer sample(int percent, Path file) {
+        if (percent <= 0 || file == null) {
+            return DISABLED;
+        } else if (percent < 100 && ThreadLocalRandom.current().nextInt(100) >= percent) {
+            return DISABLED;
+        }
+        return new Tracer(file);
+    }
+
+    private Tracer(Path file) {
+        this.file = file;
+        this.originNanos = System.nanoTime();
+        this.originMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        this.events = file == null ? Collections.emptyList() : Collections.synchronizedList(new ArrayList<>());
+    }
+
+    public boolean enabled() {
+        return file != null;
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * Starts a new span, ended when the span is closed.
+     * @param category the span category, e.g. "batch" or "api"
+     * @param name the span name
+     * @return the (possibly no-op) span
+     */
+    public Span span(String category, String name) {
+        return enabled() ? new Span(this, category, name) : Span.NOOP;
+    }
+
+    private long now() {
+        return originMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - originNanos);
+    }
+
+    private void record(Span span, long end) {
+        Map<String,Object> event = new LinkedHashMap<>();
+        event.put("name", span.name);
+        event.put("cat", span.category);
+        event.put("ph", "X");
+        event.put("ts", span.start);
+        event.put("dur", end - span.start);
+        event.put("pid", 1);
+        event.put("tid", span.thread);
+        if (span.args != null) {
+            event.put("args", span.args);
+        }
+        events.add(event);
+    }
+
+    /**
+     * Records the current values of a counter, displayed in the trace viewer
+     * as a stacked graph over time.
+     * @param name the counter name
+     * @param values the series values, e.g. one per node
+     */
+    public void counter(String name, Map<String,? extends Number> values) {
+        if (enabled()) {
+            Map<String,Object> event = new LinkedHashMap<>();
+            event.put("name", name);
+            event.put("ph", "C");
+            event.put("ts", now());
+            event.put("pid", 1);
+            event.put("args", new LinkedHashMap<>(values));
+            events.add(event);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (enabled()) {
+            Map<String,Object> trace = new LinkedHashMap<>();
+            synchronized (events) {
+                trace.put("traceEvents", new ArrayList<>(events));
+            }
+            trace.put("displayTimeUnit", "ms");
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                GSON.toJson(trace, writer);
+            }
+        }
+    }
+
+    /**
+     * A timed span.  Close the span (typically in try-with-resources) to
+     * record it.
+     */
+    public static class Span implements AutoCloseable {
+        private static final Span NOOP = new Span(null, null, null);
+
+        private final Tracer tracer;
+        private final String category;
+        private final String name;
+        private final long thread;
+        private final long start;
+        private Map<String,Object> args;
+
+        private Span(Tracer tracer, String category, String name) {
+            this.tracer = tracer;
+            this.category = category;
+            this.name = name;
+            this.thread = Thread.currentThread().getId();
+            this.start = tracer == null ? 0L : tracer.now();
+            this.args = null;
+        }
+
+        /**
+         * Attaches an argument to the span, displayed in the trace viewer.
+         * @param key the argument name
+         * @param value the argument value
+         * @return {@code this} for fluent style
+         */
+        public Span arg(String key, Object value) {
+            if (tracer != null) {
+                if (args == null) {
+                    args = new LinkedHashMap<>();
+                }
+                args.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (tracer != null) {
+                tracer.record(this, tracer.now());
+            }
+        }
+    }
+}
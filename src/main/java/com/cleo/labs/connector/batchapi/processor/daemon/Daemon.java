@@ -0,0 +1,374 @@
+package com.cleo.labs.connector.batchapi.processor.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.Permission;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.cleo.labs.connector.batchapi.processor.Main;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * A resident JVM for scripted use of the command line utility. The daemon
+ * listens on a loopback port (see {@link DaemonProtocol}) and runs each
+ * request from {@link DaemonClient} through {@link Main#main(String[])}
+ * itself, so the options and their processing are exactly those of a
+ * direct run, while the JVM, its loaded classes and the VersaLex handle
+ * (see {@link WarmCache}) stay warm between requests.
+ * <p>
+ * Each request sees its own standard streams in place of {@link System#in},
+ * {@link System#out} and {@link System#err}, on its thread and the threads
+ * it starts, and a {@link System#exit(int)} from the request ends the
+ * request with that status instead of ending the daemon.
+ * <p>
+ * Usage: {@code Daemon [--port N] [--threads N]}. Stop it with
+ * {@code DaemonClient --stop}.
+ */
+public class Daemon {
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final InheritableThreadLocal<Request> CURRENT = new InheritableThreadLocal<>();
+
+    /**
+     * The standard streams and exit status of one request.
+     */
+    private static class Request {
+        private final InputStream stdin;
+        private final PrintStream stdout;
+        private final PrintStream stderr;
+        private volatile Integer status;
+        private volatile boolean done;
+
+        private Request(InputStream stdin, PrintStream stdout, PrintStream stderr) {
+            this.stdin = stdin;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.status = null;
+            this.done = false;
+        }
+
+        private synchronized void exit(int status) {
+            if (this.status == null) {
+                this.status = status;
+            }
+        }
+    }
+
+    /**
+     * Returns the request running on this thread, or {@code null} if none
+     * is (or the thread outlived its request, as a pooled thread might).
+     */
+    private static Request current() {
+        Request request = CURRENT.get();
+        return request == null || request.done ? null : request;
+    }
+
+    /**
+     * Ends the current request, as {@link System#exit(int)} would end a
+     * direct run.
+     */
+    private static class Exit extends SecurityException {
+        private static final long serialVersionUID = 1L;
+
+        private Exit(int status) {
+            super("exit "+status);
+        }
+    }
+
+    /**
+     * Turns {@link System#exit(int)} within a request into an {@link Exit},
+     * and permits everything else.
+     */
+    private static class ExitTrap extends SecurityManager {
+        @Override
+        public void checkPermission(Permission permission) {
+        }
+
+        @Override
+        public void checkPermission(Permission permission, Object context) {
+        }
+
+        @Override
+        public void checkExit(int status) {
+            Request request = current();
+            if (request != null) {
+                request.exit(status);
+                throw new Exit(status);
+            }
+        }
+    }
+
+    /**
+     * Standard output or error, routed to the current request.
+     */
+    private static class RoutedOutputStream extends OutputStream {
+        private final PrintStream daemon;
+        private final boolean error;
+
+        private RoutedOutputStream(PrintStream daemon, boolean error) {
+            this.daemon = daemon;
+            this.error = error;
+        }
+
+        private PrintStream target() {
+            Request request = current();
+            return request == null ? daemon : error ? request.stderr : request.stdout;
+        }
+
+        @Override
+        public void write(int b) {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            target().flush();
+        }
+    }
+
+    /**
+     * Standard input, routed to the current request.
+     */
+    private static class RoutedInputStream extends InputStream {
+        private final InputStream daemon;
+
+        private RoutedInputStream(InputStream daemon) {
+            this.daemon = daemon;
+        }
+
+        private InputStream target() {
+            Request request = current();
+            return request == null ? daemon : request.stdin;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return target().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return target().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return target().available();
+        }
+    }
+
+    /**
+     * The standard input of a request, fetched from the client the first
+     * time it is read, so that it is transferred only if the request uses it.
+     */
+    private static class ClientInputStream extends InputStream {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private InputStream content;
+
+        private ClientInputStream(DataInputStream in, DataOutputStream out) {
+            this.in = in;
+            this.out = out;
+            this.content = null;
+        }
+
+        private synchronized InputStream content() throws IOException {
+            if (content == null) {
+                synchronized (out) {
+                    out.writeByte(DaemonProtocol.STDIN);
+                    out.writeInt(0);
+                    out.flush();
+                }
+                content = new ByteArrayInputStream(DaemonProtocol.readBytes(in));
+            }
+            return content;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return content().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return content().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return content().available();
+        }
+    }
+
+    private final WarmCache cache;
+    private final ServerSocket server;
+    private final ExecutorService executor;
+    private final DaemonProtocol.Endpoint endpoint;
+    private volatile boolean running;
+
+    /**
+     * Routes the standard streams and traps {@link System#exit(int)} for
+     * requests, once per JVM.
+     * @throws UnsupportedOperationException if the Java runtime does not
+     *         allow a security manager (JDK 18 and later, unless started with
+     *         {@code -Djava.security.manager=allow})
+     */
+    private static synchronized void install() {
+        if (!(System.getSecurityManager() instanceof ExitTrap)) {
+            System.setSecurityManager(new ExitTrap());
+            System.setIn(new RoutedInputStream(System.in));
+            System.setOut(new PrintStream(new RoutedOutputStream(System.out, false), true));
+            System.setErr(new PrintStream(new RoutedOutputStream(System.err, true), true));
+        }
+    }
+
+    public Daemon(int port, int threads) throws IOException {
+        this.cache = new WarmCache();
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "batchapi-daemon");
+            t.setDaemon(true);
+            return t;
+        });
+        byte[] token = new byte[32];
+        new SecureRandom().nextBytes(token);
+        this.endpoint = new DaemonProtocol.Endpoint(server.getLocalPort(), BaseEncoding.base16().encode(token));
+        this.running = false;
+    }
+
+    public void run() throws IOException {
+        DaemonProtocol.publish(endpoint);
+        running = true;
+        try {
+            while (running) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException e) {
+                    break; // closed by stop()
+                }
+                executor.submit(() -> serve(socket));
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        DaemonProtocol.unpublish(endpoint);
+        try {
+            server.close();
+        } catch (IOException ignore) {}
+        executor.shutdown();
+        cache.close();
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            String token = DaemonProtocol.readString(in);
+            if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                    endpoint.token.getBytes(StandardCharsets.UTF_8))) {
+                return;
+            }
+            int argc = in.readInt();
+            String[] args = new String[argc];
+            for (int i = 0; i < argc; i++) {
+                args[i] = DaemonProtocol.readString(in);
+            }
+
+            int status;
+            try (PrintStream stdout = new PrintStream(new BufferedOutputStream(
+                        new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.STDOUT), 64 * 1024),
+                        false, "UTF-8");
+                    PrintStream stderr = new PrintStream(
+                        new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.STDERR), true, "UTF-8")) {
+                status = execute(args, new Request(new ClientInputStream(in, out), stdout, stderr));
+            }
+            synchronized (out) {
+                out.writeByte(DaemonProtocol.EXIT);
+                out.writeInt(status);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away -- nothing to report to
+        }
+    }
+
+    private int execute(String[] args, Request request) {
+        if (Arrays.asList(args).contains("--stop")) {
+            request.stderr.println("batchapi daemon stopping");
+            new Thread(this::stop).start();
+            return 0;
+        }
+        cache.versalex();
+        CURRENT.set(request);
+        try {
+            Main.main(args);
+        } catch (Exit e) {
+            // the status is recorded by the trap
+        } catch (Exception e) {
+            if (request.status == null) {
+                request.stderr.println(Strings.isNullOrEmpty(e.getMessage()) ? e.toString() : e.getMessage());
+                request.exit(1);
+            }
+        } finally {
+            request.done = true;
+            CURRENT.remove();
+        }
+        request.stdout.flush();
+        int status = request.status == null ? 0 : request.status;
+        return status == DaemonClient.NO_DAEMON ? 1 : status; // reserved for the launcher fallback
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 0;
+        int threads = DEFAULT_THREADS;
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            }
+        }
+        if (DaemonClient.running()) {
+            System.err.println("batchapi daemon is already running");
+            System.exit(1);
+        }
+        try {
+            install();
+        } catch (UnsupportedOperationException e) {
+            System.err.println("batchapi daemon needs -Djava.security.manager=allow on this Java runtime");
+            System.exit(1);
+        }
+        Daemon daemon = new Daemon(port, threads);
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop));
+        daemon.cache.versalex();
+        System.err.println("batchapi daemon listening on port "+daemon.endpoint.port);
+        daemon.run();
+    }
+}
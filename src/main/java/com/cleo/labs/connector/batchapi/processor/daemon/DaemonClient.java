@@ -0,0 +1,116 @@
+package com.cleo.labs.connector.batchapi.processor.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Thin command line client for a running {@link Daemon}. Accepts the same
+ * options as the command line utility, submits them to the daemon and
+ * streams the results back to standard output. The standard input is sent
+ * only if the request reads it, however it was selected ({@code -i -},
+ * {@code --input=-}, or by default).
+ * <p>
+ * Exits with status {@code 2} if no daemon is running, so a launcher can
+ * fall back to running the utility directly.
+ */
+public class DaemonClient {
+
+    public static final int NO_DAEMON = 2;
+
+    private static final Set<String> FILES = ImmutableSet.of("-i", "--input", "--template", "--output-template",
+            "--log");
+
+    /**
+     * Resolves the file arguments (the values of {@link #FILES}, given as a
+     * separate argument, as {@code --option=value} or as {@code -iFILE})
+     * against the working directory of the client, since the daemon has its
+     * own.
+     */
+    static String[] resolve(String[] args, Path cwd) {
+        String[] resolved = args.clone();
+        for (int i = 0; i < resolved.length; i++) {
+            String arg = resolved[i];
+            int equals = arg.indexOf('=');
+            if (arg.equals("--")) {
+                break;
+            } else if (FILES.contains(arg) && i+1 < resolved.length) {
+                i++;
+                resolved[i] = resolve(resolved[i], cwd);
+            } else if (arg.startsWith("--") && equals > 0 && FILES.contains(arg.substring(0, equals))) {
+                resolved[i] = arg.substring(0, equals+1)+resolve(arg.substring(equals+1), cwd);
+            } else if (arg.startsWith("-i") && !arg.startsWith("--") && arg.length() > 2) {
+                resolved[i] = "-i"+resolve(arg.substring(2), cwd);
+            }
+        }
+        return resolved;
+    }
+
+    private static String resolve(String file, Path cwd) {
+        return file.equals("-") ? file : cwd.resolve(file).toString();
+    }
+
+    /**
+     * Returns {@code true} if a daemon is published and accepting connections.
+     */
+    public static boolean running() {
+        DaemonProtocol.Endpoint endpoint = DaemonProtocol.lookup();
+        if (endpoint != null) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), endpoint.port)) {
+                return true;
+            } catch (IOException e) {
+                // stale rendezvous file
+            }
+        }
+        return false;
+    }
+
+    public static int submit(String[] args) throws IOException {
+        DaemonProtocol.Endpoint endpoint = DaemonProtocol.lookup();
+        if (endpoint == null) {
+            return NO_DAEMON;
+        }
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), endpoint.port);
+        } catch (IOException e) {
+            return NO_DAEMON;
+        }
+        try (Socket s = socket;
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+            DaemonProtocol.writeString(out, endpoint.token);
+            String[] resolved = resolve(args, Paths.get("").toAbsolutePath());
+            out.writeInt(resolved.length);
+            for (String arg : resolved) {
+                DaemonProtocol.writeString(out, arg);
+            }
+            out.flush();
+            return DaemonProtocol.copyFrames(in, out, System.in, System.out, System.err);
+        }
+    }
+
+    public static void main(String[] args) {
+        int status;
+        try {
+            status = submit(args);
+            if (status == NO_DAEMON && !Arrays.asList(args).contains("--stop") && !running()) {
+                System.err.println("batchapi daemon is not running");
+            }
+        } catch (IOException e) {
+            System.err.println("batchapi daemon error: "+e.getMessage());
+            status = 1;
+        }
+        System.exit(status);
+    }
+}
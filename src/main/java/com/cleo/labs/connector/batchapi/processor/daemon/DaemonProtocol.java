@@ -0,0 +1,207 @@
+package com.cleo.labs.connector.batchapi.processor.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Wire format and rendezvous file shared by {@link Daemon} and
+ * {@link DaemonClient}.
+ * <p>
+ * The daemon listens on a loopback port and records the port and a random
+ * session token in {@code $HOME/.cic/daemon}, readable only by the owner.
+ * A request is the token and the argument list, with file arguments
+ * resolved by the client. The response is a sequence of frames: {@code O}
+ * (standard output bytes), {@code E} (standard error bytes), {@code I}
+ * (a request for the standard input, which the client answers with its
+ * bytes, the first time the request reads it) and a final {@code X}
+ * carrying the exit status.
+ */
+public class DaemonProtocol {
+
+    public static final byte STDOUT = 'O';
+    public static final byte STDERR = 'E';
+    public static final byte STDIN = 'I';
+    public static final byte EXIT = 'X';
+
+    public static final int MAX_STRING = 64 * 1024 * 1024;
+
+    private DaemonProtocol() {
+    }
+
+    public static Path rendezvous() {
+        return Paths.get(System.getProperty("user.home"), ".cic", "daemon");
+    }
+
+    /**
+     * The contents of the rendezvous file.
+     */
+    public static class Endpoint {
+        public final int port;
+        public final String token;
+        public Endpoint(int port, String token) {
+            this.port = port;
+            this.token = token;
+        }
+    }
+
+    public static void publish(Endpoint endpoint) throws IOException {
+        Path file = rendezvous();
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), "daemon", ".tmp");
+        try {
+            Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system -- rely on the home directory protection
+        }
+        Properties properties = new Properties();
+        properties.setProperty("port", String.valueOf(endpoint.port));
+        properties.setProperty("token", endpoint.token);
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            properties.store(writer, "batchapi daemon");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the rendezvous file.
+     * @return the published {@link Endpoint}, or {@code null} if there is none
+     */
+    public static Endpoint lookup() {
+        Path file = rendezvous();
+        if (!Files.isReadable(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            return new Endpoint(Integer.parseInt(properties.getProperty("port")), properties.getProperty("token"));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public static void unpublish(Endpoint endpoint) {
+        Endpoint current = lookup();
+        if (current != null && current.token.equals(endpoint.token)) {
+            try {
+                Files.deleteIfExists(rendezvous());
+            } catch (IOException ignore) {}
+        }
+    }
+
+    public static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING) {
+            throw new IOException("invalid length "+length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An {@link OutputStream} that wraps everything written to it in frames
+     * of the given type.
+     */
+    public static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        public FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                synchronized (out) {
+                    out.writeByte(type);
+                    out.writeInt(len);
+                    out.write(b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Copies response frames to {@code stdout} and {@code stderr}, sending
+     * {@code stdin} when the daemon asks for it.
+     * @return the exit status from the final frame
+     */
+    public static int copyFrames(DataInputStream in, DataOutputStream out, InputStream stdin, OutputStream stdout,
+            OutputStream stderr) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                throw new IOException("daemon closed the connection unexpectedly");
+            }
+            int length = in.readInt();
+            if (type == EXIT) {
+                return length;
+            } else if (type == STDIN) {
+                writeBytes(out, ByteStreams.toByteArray(stdin));
+                out.flush();
+                continue;
+            }
+            OutputStream target = type == STDERR ? stderr : stdout;
+            while (length > 0) {
+                int n = in.read(buffer, 0, Math.min(buffer.length, length));
+                if (n < 0) {
+                    throw new IOException("daemon closed the connection unexpectedly");
+                }
+                target.write(buffer, 0, n);
+                length -= n;
+            }
+            target.flush();
+        }
+    }
+}
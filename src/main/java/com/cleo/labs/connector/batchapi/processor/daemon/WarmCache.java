@@ -0,0 +1,50 @@
+package com.cleo.labs.connector.batchapi.processor.daemon;
+
+import com.cleo.labs.connector.batchapi.processor.versalex.RealVersaLex;
+
+/**
+ * State kept warm across {@link Daemon} requests: the VersaLex handle.
+ * <p>
+ * Bootstrapping VersaLex is most of the cost of a run against a local
+ * Harmony or VLTrader installation. The daemon connects once and keeps the
+ * handle for its lifetime, so that the {@link RealVersaLex#connect()} of
+ * each request finds the current instance instead of bootstrapping it
+ * again (and, since that request did not vend it, leaves it open when it
+ * disconnects).
+ */
+public class WarmCache {
+
+    private RealVersaLex versalex;
+
+    public WarmCache() {
+        this.versalex = null;
+    }
+
+    /**
+     * Connects to VersaLex, unless the handle is already connected.
+     * @return the handle, or {@code null} if VersaLex is not available
+     *         (no {@code $CLEOHOME}, or its jars are not on the classpath)
+     */
+    public synchronized RealVersaLex versalex() {
+        if (versalex == null || !versalex.connected()) {
+            try {
+                RealVersaLex connecting = new RealVersaLex();
+                connecting.connect();
+                versalex = connecting.connected() ? connecting : null;
+            } catch (LinkageError e) {
+                versalex = null; // started without the VersaLex classpath
+            }
+        }
+        return versalex;
+    }
+
+    /**
+     * Disconnects the VersaLex handle, if connected.
+     */
+    public synchronized void close() {
+        if (versalex != null) {
+            versalex.disconnect();
+            versalex = null;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.cleo.labs.connector.batchapi.processor.versalex;
+
+/**
+ * Exercises the {@link RealVersaLex} integration once: connect, a property
+ * lookup, a decrypt and disconnect. Run under {@code -verbose:class} by
+ * {@code batchapi.sh} to learn the minimal set of VersaLex jars for its
+ * classpath, and to record a class data sharing archive.
+ */
+public class VersaLexWarmup {
+
+    public static void main(String[] args) {
+        RealVersaLex versalex = new RealVersaLex();
+        versalex.connect();
+        if (versalex.connected()) {
+            try {
+                versalex.get("batchapi-warmup", "Host");
+            } catch (Exception ignore) {}
+            versalex.decrypt("batchapi-warmup");
+            versalex.disconnect();
+        }
+        System.exit(0);
+    }
+}
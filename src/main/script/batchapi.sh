@@ -27,6 +27,76 @@ findhome() {
     echo $cleohome
 }
 
+# usage:   trainclasspath $java $classpath > file
+# returns: a classpath of only the jars loaded while bootstrapping VersaLex,
+#          learned from a -verbose:class run of VersaLexWarmup
+trainclasspath() {
+    local java classpath
+    java=$1
+    classpath=$2
+    printf '%s' $jar
+    (CLEOHOME=$cleohome $java -verbose:class -cp $classpath \
+        com.cleo.labs.connector.batchapi.processor.versalex.VersaLexWarmup 2>/dev/null) |
+        sed -n 's|.*file:\(/[^]!]*\.jar\).*|\1|p' | grep -v "^$jar\$" | sort -u |
+        sed 's|^|:|' | tr -d '\n'
+    echo
+}
+
+# usage:   options=$(cdsoptions $java $archive)
+# returns: the options to use (or record, on the first run) a dynamic
+#          class data sharing archive, if supported by $java (JDK 13+),
+#          remembering in $archive.cds whether it is supported
+cdsoptions() {
+    local java archive supported
+    java=$1
+    archive=$2
+    supported=$archive.cds
+    if [ -s "$archive" ]; then
+        echo "-Xshare:auto -XX:SharedArchiveFile=$archive"
+        return
+    fi
+    if [ ! -s "$supported" -o "$(command -v $java)" -nt "$supported" ]; then
+        if $java -XX:+PrintFlagsFinal -version 2>/dev/null | grep -q ArchiveClassesAtExit; then
+            echo yes
+        else
+            echo no
+        fi > $supported
+    fi
+    if [ "$(cat $supported)" = "yes" ]; then
+        echo "-XX:ArchiveClassesAtExit=$archive"
+    fi
+}
+
+# usage:   classpath=$(fullclasspath $cleohome $jar)
+# returns: $jar and every directory under $cleohome/lib (as a wildcard),
+#          or just $jar without a $cleohome
+fullclasspath() {
+    if [ "$1" != "" ]; then
+        echo $2:$(find $1/lib -type d|sed 's|$|/*|'|paste -s -d : -):$1/webserver/AjaxSwing/lib/ajaxswing.jar
+    else
+        echo $2
+    fi
+}
+
+# usage:   stamp=$(libstamp $cleohome $jar)
+# returns: the modification times of $cleohome/lib, of its subdirectories
+#          and of $jar, from a single stat: a jar added, removed or renamed
+#          under lib changes the time of its directory
+libstamp() {
+    stat -c %Y $1/lib $1/lib/*/ $2 2>/dev/null | cksum | cut -d' ' -f1
+}
+
+# usage:   run $errors $java options...
+# returns: the exit status of $java, passing its standard error through
+#          while also saving it in $errors
+run() {
+    local errors
+    errors=$1
+    shift
+    { { "$@"; echo $? > $errors.status; } 2>&1 1>&3 | tee $errors >&2; } 3>&1
+    return $(cat $errors.status)
+}
+
 here=$(cd `dirname $0` && pwd -P)
 cleohome=$(findhome $1)
 if [ "$cleohome" != "" ]; then
@@ -39,11 +109,80 @@ elif [ -e "./Harmonyc" -o -e "./VLTraderc" ]; then
 else
     cleohome=$(servicehome cleo-harmony)
 fi
+jar=$HOME/.cleo/cache/connector-batchapi-0.9-RC2-SNAPSHOT-commandline.jar
+daemon=com.cleo.labs.connector.batchapi.processor.daemon
 if [ "$cleohome" != "" ]; then
     cleohome=$(cd $cleohome && pwd -P)
+    java=$cleohome/jre/bin/java
+else
+    java=java
+fi
+
+# usage: batchapi.sh [cleohome] --daemon start|stop
+#   starts or stops a resident daemon: while it is running, requests are
+#   submitted to it instead of starting (and bootstrapping) a new JVM
+if [ "$1" = "--daemon" ]; then
+    case "$2" in
+    start)
+        mkdir -p $HOME/.cic
+        # the daemon traps System.exit for each request with a security
+        # manager, which JDK 18+ allows only if asked (and JDK 8-11 reject)
+        allow=-Djava.security.manager=allow
+        $java $allow -version > /dev/null 2>&1 || allow=
+        CLEOHOME=$cleohome nohup $java $allow -cp $(fullclasspath $cleohome $jar) $daemon.Daemon > $HOME/.cic/daemon.log 2>&1 &
+        ;;
+    stop)
+        $java -cp $jar $daemon.DaemonClient --stop
+        ;;
+    *)
+        echo "usage: $0 [cleohome] --daemon start|stop"
+        ;;
+    esac
+    exit
+fi
+
+# try a running daemon first: it exits 2 if there is none, and Main runs
+# the request instead
+if [ -f "$HOME/.cic/daemon" ]; then
+    $java -Xshare:auto -XX:TieredStopAtLevel=1 -cp $jar $daemon.DaemonClient "$@"
+    status=$?
+    if [ $status -ne 2 ]; then
+        exit $status
+    fi
+fi
+
+if [ "$cleohome" != "" ]; then
     unset DISPLAY
-    classpath=$HOME/.cleo/cache/connector-batchapi-0.9-RC2-SNAPSHOT-commandline.jar:$(find $cleohome/lib -type d|sed 's|$|/*|'|paste -s -d : -):$cleohome/webserver/AjaxSwing/lib/ajaxswing.jar
-    (CLEOHOME=$cleohome $cleohome/jre/bin/java -cp $classpath com.cleo.labs.connector.batchapi.processor.Main "$@")
+    main=com.cleo.labs.connector.batchapi.processor.Main
+    if [ "$BATCHAPI_CLASSPATH" = "full" ]; then
+        (CLEOHOME=$cleohome $java -cp $(fullclasspath $cleohome $jar) $main "$@")
+        exit
+    fi
+    # the trimmed classpath and CDS archive are specific to this CLEOHOME and jar
+    cache=$(dirname $jar)
+    key=$(echo "$cleohome:$jar" | cksum | cut -d' ' -f1)
+    cpfile=$cache/batchapi-$key.classpath
+    jsa=$cache/batchapi-$key.jsa
+    stamp=$(libstamp $cleohome $jar)
+    if [ ! -s "$cpfile" -o "$(cat $cpfile.stamp 2>/dev/null)" != "$stamp" ]; then
+        trainclasspath $java $(fullclasspath $cleohome $jar) > $cpfile.tmp && mv $cpfile.tmp $cpfile
+        echo $stamp > $cpfile.stamp
+        rm -f $jsa
+    fi
+    # a class missing from the trimmed classpath (a jar the warmup did not
+    # load, or one replaced in place) fails the run: retry it once with the
+    # full classpath, and learn the trimmed classpath again on the next run
+    errors=$cache/batchapi-$$.errors
+    trap 'rm -f $errors $errors.status' EXIT
+    (CLEOHOME=$cleohome; export CLEOHOME; run $errors $java $(cdsoptions $java $jsa) -cp $(cat $cpfile) $main "$@")
+    status=$?
+    if [ $status -ne 0 ] && grep -q -e NoClassDefFoundError -e ClassNotFoundException $errors; then
+        rm -f $cpfile $jsa
+        echo "retrying with the full classpath" >&2
+        (CLEOHOME=$cleohome $java -cp $(fullclasspath $cleohome $jar) $main "$@")
+        status=$?
+    fi
+    exit $status
 else
     echo "Cleo installation not found"
 fi
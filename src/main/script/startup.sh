@@ -0,0 +1,65 @@
+#!/bin/sh
+
+# usage:   startup.sh java jar outdir [runs]
+# measures the time to first request of the command line jar, for --help
+#   and for a real (preview) request, with and without a class data sharing
+#   archive generated for it, reporting to stdout and outdir/startup.txt
+
+java=$1
+jar=$2
+outdir=$3
+runs=${4:-5}
+main=com.cleo.labs.connector.batchapi.processor.Main
+archive=$outdir/$(basename $jar .jar).jsa
+report=$outdir/startup.txt
+# remaining arguments are joined with a space into the request text
+request="--operation preview username: startup"
+
+# usage:   run help|request options...
+# runs --help or a preview $request, which parses and formats the request
+#   without connecting to Harmony
+run() {
+    local command
+    command=$1
+    shift
+    if [ "$command" = "help" ]; then
+        $java "$@" -cp $jar $main --help
+    else
+        $java "$@" -cp $jar $main $request
+    fi
+}
+
+# usage:   ms=$(timeruns help|request options...)
+# returns: the average wall clock milliseconds of $runs runs
+timeruns() {
+    local start end i
+    start=$(date +%s%N)
+    i=0
+    while [ $i -lt $runs ]; do
+        run "$@" > /dev/null 2>&1
+        i=$((i+1))
+    done
+    end=$(date +%s%N)
+    echo $(( (end-start) / runs / 1000000 ))
+}
+
+mkdir -p $outdir
+rm -f $archive
+echo "startup: $jar" | tee $report
+run request -Xshare:auto > /dev/null 2>&1
+echo "startup: $request exits with status $?" | tee -a $report
+for command in help request; do
+    ms=$(timeruns $command -Xshare:auto)
+    echo "startup: $command without archive: ${ms}ms (average of $runs)" | tee -a $report
+done
+if $java -XX:+PrintFlagsFinal -version 2>/dev/null | grep -q ArchiveClassesAtExit; then
+    run request -XX:ArchiveClassesAtExit=$archive > /dev/null 2>&1
+    if [ -s "$archive" ]; then
+        for command in help request; do
+            ms=$(timeruns $command -Xshare:auto -XX:SharedArchiveFile=$archive)
+            echo "startup: $command with $(basename $archive): ${ms}ms (average of $runs)" | tee -a $report
+        done
+    fi
+else
+    echo "startup: $java does not support dynamic class data sharing archives" | tee -a $report
+fi
@@ -0,0 +1,475 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Strings;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-memory stand-in for the Harmony REST API, bound to the loopback
+ * interface, supporting authenticators, users, connections, actions and
+ * certificates with configurable latency, error injection and paging.
+ * <p>
+ * Only the subset of the API used by the batch processor is modeled:
+ * token authentication, collection listing with simple
+ * {@code attr eq|sw|co "value"} filters joined by {@code and}, and
+ * create/read/update/delete by id, plus running actions.
+ */
+public class MockHarmony implements Closeable {
+
+    private static final Gson GSON = new Gson();
+    private static final Pattern PATH = Pattern.compile("/api/(\\w+)(?:/([^/]+))?(?:/(\\w+))?/?");
+    private static final Pattern FILTER = Pattern.compile("(\\S+)\\s+(eq|sw|co)\\s+\"([^\"]*)\"");
+    private static final String[] TYPES = {"authenticators", "users", "connections", "actions", "certs"};
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String,Map<String,JsonObject>> store;
+    private final Map<String,AtomicLong> counters;
+    private final String user;
+    private final String password;
+    private final String token;
+
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+    private volatile double errorRate = 0.0;
+    private volatile int errorStatus = 503;
+    private volatile int pageSize = 100;
+
+    /**
+     * Starts a mock server on an ephemeral loopback port.
+     * @param user the API user to accept
+     * @param password the API user's password
+     * @throws IOException if the server can not be started
+     */
+    public MockHarmony(String user, String password) throws IOException {
+        this.user = user;
+        this.password = password;
+        this.token = UUID.randomUUID().toString();
+        this.store = new ConcurrentHashMap<>();
+        for (String type : TYPES) {
+            store.put(type, Collections.synchronizedMap(new LinkedHashMap<>()));
+        }
+        this.counters = new ConcurrentHashMap<>();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "mock-harmony");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/api", this::handle);
+        server.start();
+    }
+
+    public String url() {
+        return "http://"+server.getAddress().getHostString()+":"+server.getAddress().getPort();
+    }
+
+    /**
+     * Returns a connector {@link Profile} pointing at this server.
+     * @param name the profile name
+     * @return an enabled {@code Profile}
+     */
+    public Profile profile(String name) {
+        return new Profile().enabled(true).setProfileName(name).url(url()).user(user).password(password);
+    }
+
+    /**
+     * Delays every response by {@code latency} plus up to {@code jitter}.
+     */
+    public MockHarmony latency(long latency, long jitter, TimeUnit unit) {
+        this.latencyMillis = unit.toMillis(latency);
+        this.jitterMillis = unit.toMillis(jitter);
+        return this;
+    }
+
+    /**
+     * Fails a random {@code rate} fraction of API requests with {@code status}.
+     */
+    public MockHarmony errors(double rate, int status) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+        return this;
+    }
+
+    /**
+     * Limits collection responses to {@code pageSize} resources per page.
+     */
+    public MockHarmony pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Returns the number of requests received for {@code "METHOD type"},
+     * e.g. {@code "POST users"}.
+     */
+    public long count(String key) {
+        AtomicLong counter = counters.get(key);
+        return counter == null ? 0L : counter.get();
+    }
+
+    /**
+     * Returns the number of stored objects of {@code type}.
+     */
+    public int size(String type) {
+        return store.get(type).size();
+    }
+
+    /**
+     * Seeds an object directly into the store, bypassing the API.
+     * @param type the collection, e.g. {@code "certs"}
+     * @param id the id to store it under
+     * @param object the object
+     * @return the stored object, with {@code id} and {@code _links} filled in
+     */
+    public JsonObject put(String type, String id, JsonObject object) {
+        object.addProperty("id", id);
+        object.add("_links", links(type, id));
+        store.get(type).put(id, object);
+        return object;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            delay();
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/api/authentication")) {
+                authenticate(exchange);
+                return;
+            }
+            if (!authorized(exchange)) {
+                respond(exchange, 401, error("unauthorized"));
+                return;
+            }
+            Matcher m = PATH.matcher(path);
+            if (!m.matches() || !store.containsKey(m.group(1))) {
+                respond(exchange, 404, error("not found: "+path));
+                return;
+            }
+            String type = m.group(1);
+            String id = m.group(2);
+            String sub = m.group(3);
+            counters.computeIfAbsent(method+" "+type, k -> new AtomicLong()).incrementAndGet();
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                respond(exchange, errorStatus, error("injected error"));
+                return;
+            }
+            if (id == null) {
+                switch (method) {
+                case "GET":
+                    list(exchange, type);
+                    return;
+                case "POST":
+                    create(exchange, type);
+                    return;
+                }
+            } else if (sub != null) {
+                if (type.equals("actions") && sub.equals("run") && method.equals("POST")) {
+                    run(exchange, id);
+                    return;
+                } else if (type.equals("authenticators") && sub.equals("users")) {
+                    nested(exchange, method, id);
+                    return;
+                }
+            } else {
+                JsonObject object = store.get(type).get(id);
+                if (object == null) {
+                    respond(exchange, 404, error(type+" "+id+" not found"));
+                    return;
+                }
+                switch (method) {
+                case "GET":
+                    respond(exchange, 200, object);
+                    return;
+                case "PUT":
+                    JsonObject update = body(exchange);
+                    put(type, id, update);
+                    respond(exchange, 200, update);
+                    return;
+                case "DELETE":
+                    store.get(type).remove(id);
+                    respond(exchange, 204, null);
+                    return;
+                }
+            }
+            respond(exchange, 405, error("method not allowed: "+method+" "+path));
+        } catch (Exception e) {
+            respond(exchange, 500, error(String.valueOf(e)));
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        long millis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis) : 0);
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private void authenticate(HttpExchange exchange) throws IOException {
+        Map<String,String> form = form(read(exchange));
+        if (user.equals(form.get("username")) && password.equals(form.get("password"))) {
+            JsonObject response = new JsonObject();
+            response.addProperty("access_token", token);
+            response.addProperty("token_type", "bearer");
+            response.addProperty("expires_in", 3600);
+            respond(exchange, 200, response);
+        } else {
+            respond(exchange, 401, error("invalid credentials"));
+        }
+    }
+
+    private boolean authorized(HttpExchange exchange) {
+        String authorization = Strings.nullToEmpty(exchange.getRequestHeaders().getFirst("Authorization"));
+        if (authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return authorization.substring(7).trim().equals(token);
+        } else if (authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            String credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()),
+                    StandardCharsets.UTF_8);
+            return credentials.equals(user+":"+password);
+        }
+        return false;
+    }
+
+    private void list(HttpExchange exchange, String type) throws IOException {
+        Map<String,String> query = form(Strings.nullToEmpty(exchange.getRequestURI().getRawQuery()));
+        List<JsonObject> matches = filter(store.get(type), query.get("filter"));
+        int startIndex = parse(query.get("startIndex"), 0);
+        int count = Math.min(parse(query.get("count"), pageSize), pageSize);
+        respond(exchange, 200, page(type, matches, startIndex, count));
+    }
+
+    private void nested(HttpExchange exchange, String method, String authenticatorId) throws IOException {
+        if (!store.get("authenticators").containsKey(authenticatorId)) {
+            respond(exchange, 404, error("authenticator "+authenticatorId+" not found"));
+        } else if (method.equals("GET")) {
+            Map<String,String> query = form(Strings.nullToEmpty(exchange.getRequestURI().getRawQuery()));
+            List<JsonObject> users = new ArrayList<>();
+            for (JsonObject u : filter(store.get("users"), query.get("filter"))) {
+                if (authenticatorId.equals(authenticatorOf(u))) {
+                    users.add(u);
+                }
+            }
+            respond(exchange, 200, page("users", users, parse(query.get("startIndex"), 0), pageSize));
+        } else if (method.equals("POST")) {
+            JsonObject object = put("users", newId(), body(exchange));
+            JsonObject authenticator = new JsonObject();
+            authenticator.addProperty("href", "/api/authenticators/"+authenticatorId);
+            object.getAsJsonObject("_links").add("authenticator", authenticator);
+            respond(exchange, 201, object);
+        } else {
+            respond(exchange, 405, error("method not allowed: "+method));
+        }
+    }
+
+    private void create(HttpExchange exchange, String type) throws IOException {
+        JsonObject object = body(exchange);
+        String id = newId();
+        respond(exchange, 201, put(type, id, object));
+    }
+
+    private void run(HttpExchange exchange, String id) throws IOException {
+        JsonObject action = store.get("actions").get(id);
+        if (action == null) {
+            respond(exchange, 404, error("action "+id+" not found"));
+            return;
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("status", "completed");
+        response.addProperty("result", "success");
+        JsonArray messages = new JsonArray();
+        messages.add("Run: type=\"API\"");
+        messages.add("End");
+        response.add("messages", messages);
+        respond(exchange, 200, response);
+    }
+
+    private static String authenticatorOf(JsonObject user) {
+        JsonElement links = user.get("_links");
+        if (links != null && links.getAsJsonObject().has("authenticator")) {
+            String href = links.getAsJsonObject().getAsJsonObject("authenticator").get("href").getAsString();
+            return href.substring(href.lastIndexOf('/')+1);
+        }
+        return null;
+    }
+
+    private static List<JsonObject> filter(Map<String,JsonObject> objects, String filter) {
+        List<JsonObject> result = new ArrayList<>();
+        List<String[]> terms = new ArrayList<>();
+        if (!Strings.isNullOrEmpty(filter)) {
+            for (String term : filter.split("\\s+and\\s+")) {
+                Matcher m = FILTER.matcher(term.trim());
+                if (m.matches()) {
+                    terms.add(new String[] {m.group(1), m.group(2), m.group(3)});
+                }
+            }
+        }
+        synchronized (objects) {
+            for (JsonObject object : objects.values()) {
+                if (matches(object, terms)) {
+                    result.add(object);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(JsonObject object, List<String[]> terms) {
+        for (String[] term : terms) {
+            JsonElement value = object;
+            for (String part : term[0].split("\\.")) {
+                value = value != null && value.isJsonObject() ? value.getAsJsonObject().get(part) : null;
+            }
+            if (value == null || !value.isJsonPrimitive()) {
+                return false;
+            }
+            String s = value.getAsString();
+            boolean match;
+            switch (term[1]) {
+            case "sw":
+                match = s.startsWith(term[2]);
+                break;
+            case "co":
+                match = s.contains(term[2]);
+                break;
+            default:
+                match = s.equals(term[2]);
+            }
+            if (!match) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static JsonObject page(String type, List<JsonObject> matches, int startIndex, int count) {
+        JsonObject page = new JsonObject();
+        JsonArray resources = new JsonArray();
+        int end = Math.min(matches.size(), startIndex+count);
+        for (int i = startIndex; i < end; i++) {
+            resources.add(matches.get(i));
+        }
+        page.addProperty("totalResults", matches.size());
+        page.addProperty("startIndex", startIndex);
+        page.addProperty("count", resources.size());
+        page.add("resources", resources);
+        JsonObject links = new JsonObject();
+        JsonObject self = new JsonObject();
+        self.addProperty("href", "/api/"+type+"?startIndex="+startIndex+"&count="+count);
+        links.add("self", self);
+        if (end < matches.size()) {
+            JsonObject next = new JsonObject();
+            next.addProperty("href", "/api/"+type+"?startIndex="+end+"&count="+count);
+            links.add("next", next);
+        }
+        page.add("_links", links);
+        return page;
+    }
+
+    private static JsonObject links(String type, String id) {
+        JsonObject self = new JsonObject();
+        self.addProperty("href", "/api/"+type+"/"+id);
+        JsonObject links = new JsonObject();
+        links.add("self", self);
+        return links;
+    }
+
+    private static String newId() {
+        return UUID.randomUUID().toString().replace("-", "").substring(0, 22);
+    }
+
+    private static int parse(String value, int defaultValue) {
+        try {
+            return Strings.isNullOrEmpty(value) ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static JsonObject error(String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("message", message);
+        return error;
+    }
+
+    private static String read(HttpExchange exchange) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            char[] buffer = new char[8192];
+            for (int n; (n = reader.read(buffer)) >= 0;) {
+                sb.append(buffer, 0, n);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static JsonObject body(HttpExchange exchange) throws IOException {
+        String body = read(exchange);
+        return Strings.isNullOrEmpty(body) ? new JsonObject() : new JsonParser().parse(body).getAsJsonObject();
+    }
+
+    private static Map<String,String> form(String encoded) throws IOException {
+        Map<String,String> form = new HashMap<>();
+        for (String pair : encoded.split("&")) {
+            if (!pair.isEmpty()) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                String value = eq < 0 ? "" : pair.substring(eq+1);
+                form.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return form;
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonObject body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            byte[] bytes = GSON.toJson(body).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        exchange.close();
+    }
+}
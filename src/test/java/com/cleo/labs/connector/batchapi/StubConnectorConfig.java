@@ -0,0 +1,190 @@
+package com.cleo.labs.connector.batchapi;
+
+import java.nio.file.Path;
+
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.OutputFormat;
+
+/**
+ * A {@link BatchAPIConnectorConfig} with fixed values in place of schema
+ * properties, for driving {@link BatchAPIProcessor} outside of Harmony.
+ */
+public class StubConnectorConfig extends BatchAPIConnectorConfig {
+    private Path workingDirectory;
+    private Profile[] profiles;
+    private boolean generatePasswords;
+    private String exportPassword;
+    private Operation defaultOperation;
+    private String template;
+    private OutputFormat outputFormat;
+    private String outputTemplate;
+    private int runConcurrency;
+    private int runDeadline;
+    private int schedulerConcurrency;
+
+    public StubConnectorConfig(Path workingDirectory) {
+        super(null, null);
+        this.workingDirectory = workingDirectory;
+        this.profiles = new Profile[0];
+        this.generatePasswords = false;
+        this.exportPassword = "";
+        this.defaultOperation = null;
+        this.template = "";
+        this.outputFormat = OutputFormat.yaml;
+        this.outputTemplate = "";
+        this.runConcurrency = 1;
+        this.runDeadline = 0;
+        this.schedulerConcurrency = 0;
+    }
+
+    public StubConnectorConfig profiles(Profile...profiles) {
+        this.profiles = profiles;
+        return this;
+    }
+    public StubConnectorConfig generatePasswords(boolean generatePasswords) {
+        this.generatePasswords = generatePasswords;
+        return this;
+    }
+    public StubConnectorConfig exportPassword(String exportPassword) {
+        this.exportPassword = exportPassword;
+        return this;
+    }
+    public StubConnectorConfig defaultOperation(Operation defaultOperation) {
+        this.defaultOperation = defaultOperation;
+        return this;
+    }
+    public StubConnectorConfig template(String template) {
+        this.template = template;
+        return this;
+    }
+    public StubConnectorConfig outputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+        return this;
+    }
+    public StubConnectorConfig runConcurrency(int runConcurrency) {
+        this.runConcurrency = runConcurrency;
+        return this;
+    }
+    public StubConnectorConfig runDeadline(int runDeadline) {
+        this.runDeadline = runDeadline;
+        return this;
+    }
+    public StubConnectorConfig schedulerConcurrency(int schedulerConcurrency) {
+        this.schedulerConcurrency = schedulerConcurrency;
+        return this;
+    }
+    public StubConnectorConfig outputTemplate(String outputTemplate) {
+        this.outputTemplate = outputTemplate;
+        return this;
+    }
+
+    @Override
+    public BatchAPIConnectorConfig snapshot() {
+        return this;
+    }
+
+    @Override
+    public Path getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    @Override
+    public Profile[] getProfiles() {
+        return profiles;
+    }
+
+    @Override
+    public boolean getGeneratePasswords() {
+        return generatePasswords;
+    }
+
+    @Override
+    public String getExportPassword() {
+        return exportPassword;
+    }
+
+    @Override
+    public Operation getDefaultOperation() {
+        return defaultOperation;
+    }
+
+    @Override
+    public String getTemplate() {
+        return template;
+    }
+
+    @Override
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public String getOutputTemplate() {
+        return outputTemplate;
+    }
+
+    @Override
+    public int getTraceSamplePercent() {
+        return 0;
+    }
+
+    @Override
+    public Compression.Format getOutputCompression() {
+        return Compression.Format.none;
+    }
+
+    @Override
+    public int getArchiveConcurrency() {
+        return 1;
+    }
+
+    @Override
+    public int getClusterChunkSize() {
+        return 0;
+    }
+
+    @Override
+    public boolean getWatchInbox() {
+        return false;
+    }
+
+    @Override
+    public CertificateCache.Scope getCertificateCache() {
+        return CertificateCache.Scope.batch;
+    }
+
+    @Override
+    public boolean getProfileFailover() {
+        return false;
+    }
+
+    @Override
+    public int getRunConcurrency() {
+        return runConcurrency;
+    }
+
+    @Override
+    public int getRunDeadline() {
+        return runDeadline;
+    }
+
+    @Override
+    public int getSchedulerConcurrency() {
+        return schedulerConcurrency;
+    }
+
+    @Override
+    public boolean getSchedulingByFolder() {
+        return false;
+    }
+
+    @Override
+    public int getSchedulingWeight() {
+        return 1;
+    }
+
+    @Override
+    public boolean getEnableDebug() {
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+package com.cleo.labs.connector.batchapi;
+
+import com.google.common.base.Strings;
+
+/**
+ * Generates synthetic request files for the built-in CSV templates and
+ * for YAML, for benchmarks and scale tests.
+ */
+public class SyntheticRequests {
+
+    public enum Template {
+        user("Host,UserID,Password,Email,WhitelistIP,DefaultHomeDir"),
+        as2("type,alias,url,AS2From,AS2To,Subject,encrypted,signed,receipt,inbox,outbox"),
+        sftp("type,alias,host,port,username,password,inbox,outbox"),
+        ftp("type,alias,host,port,username,password,channelmode,inbox,outbox");
+
+        private final String header;
+
+        private Template(String header) {
+            this.header = header;
+        }
+
+        public String header() {
+            return header;
+        }
+    }
+
+    private SyntheticRequests() {
+    }
+
+    /**
+     * Pads {@code value} to {@code width} characters (if shorter).
+     */
+    private static String pad(String value, int width) {
+        return value.length() >= width ? value : Strings.padEnd(value, width, 'x');
+    }
+
+    /**
+     * Generates a CSV file matching a built-in template.
+     * @param template the built-in template to target
+     * @param rows the number of data rows
+     * @param width the minimum width of the free-form text columns
+     * @return the CSV content, including a header
+     */
+    public static String csv(Template template, int rows, int width) {
+        return csv(template, rows, width, "obj");
+    }
+
+    /**
+     * Generates a CSV file matching a built-in template, with object names
+     * starting with {@code prefix}.
+     */
+    public static String csv(Template template, int rows, int width, String prefix) {
+        StringBuilder sb = new StringBuilder(template.header()).append('\n');
+        for (int i = 0; i < rows; i++) {
+            String name = pad(prefix+i, width);
+            switch (template) {
+            case user:
+                sb.append("Users,").append(name).append(",Password1!,")
+                  .append(name).append("@example.com,10.0.0.1,local/root/").append(name).append('\n');
+                break;
+            case as2:
+                sb.append("as2,").append(name).append(",https://partner.example.com/as2,")
+                  .append(name).append(",partner,").append(pad("subject", width))
+                  .append(",true,true,true,inbox/,outbox/\n");
+                break;
+            case sftp:
+                sb.append("sftp,").append(name).append(",sftp.example.com,22,")
+                  .append(name).append(",Password1!,inbox/,outbox/\n");
+                break;
+            case ftp:
+                sb.append("ftp,").append(name).append(",ftp.example.com,21,")
+                  .append(name).append(",Password1!,passive,inbox/,outbox/\n");
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates a YAML request file adding {@code rows} users.
+     * @param rows the number of requests
+     * @param width the minimum width of the username
+     * @return the YAML content
+     */
+    public static String yaml(int rows, int width) {
+        return yaml(rows, width, "user");
+    }
+
+    /**
+     * Generates a YAML request file adding {@code rows} users with names
+     * starting with {@code prefix}.
+     */
+    public static String yaml(int rows, int width, String prefix) {
+        StringBuilder sb = new StringBuilder("---\n");
+        for (int i = 0; i < rows; i++) {
+            String name = pad(prefix+i, width);
+            sb.append("- username: ").append(name).append('\n')
+              .append("  email: ").append(name).append("@example.com\n")
+              .append("  password: Password1!\n")
+              .append("  authenticator: Users\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A flat output template selecting a few common fields, for CSV results.
+     */
+    public static final String OUTPUT_TEMPLATE =
+            "---\n"+
+            "columns:\n"+
+            "- name: status\n"+
+            "- name: message\n"+
+            "- name: name\n"+
+            "template:\n"+
+            "  status: ${data.result.status}\n"+
+            "  message: ${data.result.message}\n"+
+            "  name: ${data.username}\n";
+}
@@ -0,0 +1,111 @@
+package com.cleo.labs.connector.batchapi;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TestBatchScheduler {
+
+    private final BatchScheduler scheduler = BatchScheduler.of(Paths.get("scheduler-"+UUID.randomUUID()));
+
+    private Thread submit(String key, int weight, int slices, long cost, List<String> log,
+            CountDownLatch started) {
+        Thread thread = new Thread(() -> {
+            try (BatchScheduler.Flow flow = scheduler.flow(key, weight)) {
+                for (int i = 0; i < slices; i++) {
+                    try (BatchScheduler.Permit permit = flow.admit(cost)) {
+                        log.add(key);
+                        if (started != null) {
+                            started.countDown();
+                        }
+                        Thread.sleep(10);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testSmallBatchOvertakesLargeImport() throws Exception {
+        scheduler.budget(1);
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(5);
+        Thread large = submit("large", 1, 50, 10000, log, started);
+        started.await();
+        Thread small = submit("small", 1, 1, 1000, log, null);
+        small.join();
+        large.join();
+        assertEquals(51, log.size());
+        // the small batch waits for at most the slice in progress and one more
+        assertTrue(log.indexOf("small") <= 7);
+        assertEquals(0, scheduler.active());
+        assertEquals(0, scheduler.waiting());
+    }
+
+    private Thread queue(String key, int weight, long cost, List<String> log, CountDownLatch release) {
+        Thread thread = new Thread(() -> {
+            try (BatchScheduler.Flow flow = scheduler.flow(key, weight);
+                    BatchScheduler.Permit permit = flow.admit(cost)) {
+                log.add(key);
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testWeightsOrderWaitingBatches() throws Exception {
+        scheduler.budget(1);
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(0);
+        List<Thread> threads = new ArrayList<>();
+        threads.add(queue("blocker", 1, 1, log, blocked));
+        while (scheduler.active() < 1) {
+            Thread.yield();
+        }
+        // all slices queue behind the blocker: three of the heavier batch finish
+        // (virtual time 300, 600 and 900) before one of each light batch (1000)
+        for (int i = 0; i < 3; i++) {
+            threads.add(queue("heavy", 3, 900, log, done));
+        }
+        threads.add(queue("light1", 1, 1000, log, done));
+        threads.add(queue("light2", 1, 1000, log, done));
+        while (scheduler.waiting() < 5) {
+            Thread.yield();
+        }
+        blocked.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Arrays.asList("blocker", "heavy", "heavy", "heavy"), log.subList(0, 4));
+        assertEquals(new HashSet<>(Arrays.asList("light1", "light2")), new HashSet<>(log.subList(4, 6)));
+        assertEquals(0, scheduler.active());
+        assertEquals(0, scheduler.waiting());
+    }
+
+    @Test
+    public void testNoBudgetAdmitsImmediately() throws Exception {
+        try (BatchScheduler.Flow flow = scheduler.budget(0).flow("any", 1);
+                BatchScheduler.Permit a = flow.admit(1);
+                BatchScheduler.Permit b = flow.admit(1)) {
+            assertEquals(0, scheduler.active());
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.cleo.labs.connector.batchapi;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+public class TestCertificateCache {
+
+    // the certificates from the Certificate Handling examples in the README
+    private static final String ENCRYPT =
+            "-----BEGIN CERTIFICATE-----\n" +
+            "MIIDRjCCAi6gAwIBAgIQFilIVuBNTraKlA3WHvvmuDANBgkqhkiG9w0BAQsFADAy\n" +
+            "MQswCQYDVQQGEwJVUzENMAsGA1UECgwEQ2xlbzEUMBIGA1UEAwwLRGVtbyBJc3N1\n" +
+            "ZXIwHhcNMjAxMDAxMDMyMDA4WhcNMjExMDAxMDMyMDA4WjAjMQswCQYDVQQGEwJV\n" +
+            "UzEUMBIGA1UEAwwLRW5jcnlwdCAxMDUwggEiMA0GCSqGSIb3DQEBAQUAA4IBDwAw\n" +
+            "ggEKAoIBAQDRCkqE7l87RJ6f4kOIDgqpPzXX3YGrXrBmxzKqQ+4Ve1hrDbuMkWDJ\n" +
+            "Fhfo/FwWJgvfpasbHpgNF9gP/N8pTzR7NVOa4ZPujCIWf5dnA+DH/wK5ER/zMXFb\n" +
+            "uCEm6ov+5WUDBxI/gxorBPUD0pPOZv8ST2NBX+jd1Xg280FJ/eWeDOGQRnaS7PGs\n" +
+            "Ud74LtJyTZPRWEHKglxEFcC46uButasqKPEqrLVfC4kU5Hu560DfeVwpxoL4mani\n" +
+            "b/pW/d/bkETUhE3XurxsT41ZxAHfAoIV7ECVHfSbIVKCJXIRhjlFtsdiYtpX/YXg\n" +
+            "KnBj3XpalySQEpGc3ps4yzQgnRmyjgB3AgMBAAGjZzBlMAsGA1UdDwQEAwIFoDAW\n" +
+            "BgNVHSUBAf8EDDAKBggrBgEFBQcDATAdBgNVHQ4EFgQUG+qvK69+NVHWdfFB10kW\n" +
+            "vtNGUMUwHwYDVR0jBBgwFoAU52GI/XKU1F8qd36/Z06p+mp4t9MwDQYJKoZIhvcN\n" +
+            "AQELBQADggEBADE2do/HqSFBzSkZHyFi2z4VgGVJq/TnG61Kdl5Kz2dfLRu1+NeW\n" +
+            "XmBgge5ebInza5D2+uVmMf2/G9Ws4WLelxr1yESmhMoliA6jZAyhn81/AaznNjvy\n" +
+            "zyTsqcFvrm6UBGNjjU3BWQMrhA6p1bcoCCuy/CSLeHJ1v+ofG1ih+31Vbq77h/ni\n" +
+            "w+sZjfIA3rwo9oazlC9mQdoPOGxSFT2j+ygfHKoHCLIhBkiRhcXVne4Rozof/fma\n" +
+            "jIhLSh/5Feu24TpdIy9vn8P/PvefRGIOu61D1Jlffc93m3oi6bXBo9JvoA+v/pJP\n" +
+            "2eV0+LxehsQ9CvLyvBAP8H2uH6g/y5Fl9/4=\n" +
+            "-----END CERTIFICATE-----\n";
+
+    private static final String SIGN =
+            "MIIDQzCCAiugAwIBAgIQLGG6JRAsQ4S5W1ZBieixJTANBgkqhkiG9w0BAQsFADAy\n" +
+            "MQswCQYDVQQGEwJVUzENMAsGA1UECgwEQ2xlbzEUMBIGA1UEAwwLRGVtbyBJc3N1\n" +
+            "ZXIwHhcNMjAxMDAxMDMyMDA4WhcNMjExMDAxMDMyMDA4WjAgMQswCQYDVQQGEwJV\n" +
+            "UzERMA8GA1UEAwwIU2lnbiAxMDUwggEiMA0GCSqGSIb3DQEBAQUAA4IBDwAwggEK\n" +
+            "AoIBAQC2MqK1Z1Bg08tJdpo3S6iQ7vcsBFlK4OKdkYuhf9Wioy/J+oHmichzPxE5\n" +
+            "jOCC9gM1iDZ9X7reEUVDKyDb83wT2qj5cO0vw7jj8hVrmybRsJLRheYRsjC5HUyR\n" +
+            "gIU8rG5drkwbE0UDZXYSp41puotpsGwwnctdwczNolBiSlJnv844uGtawstOE7Su\n" +
+            "eWG8STWLDFcdx26lo45pllpbvE0u8t6MFzwpt8z5GSzjz5wksIANg1IcIruIdmvm\n" +
+            "f9CZ/qS8VpFwqvsPhWdXYZqjRquo4UMmTDA26IQOn+9jQEQ0toZn7AZPS4mU5v+X\n" +
+            "tbzHCMq7QbMKKe2i8SvsrbKoAnTVAgMBAAGjZzBlMAsGA1UdDwQEAwIFoDAWBgNV\n" +
+            "HSUBAf8EDDAKBggrBgEFBQcDATAdBgNVHQ4EFgQUeBrHJ1fNFMBlzZhmRPFtbVq1\n" +
+            "JAUwHwYDVR0jBBgwFoAU52GI/XKU1F8qd36/Z06p+mp4t9MwDQYJKoZIhvcNAQEL\n" +
+            "BQADggEBAEEIXPAysj6SsibGIPH0VWeADr0w5WvsxjqnLeCXLMwvsRPUKvUPPFGB\n" +
+            "KgfTHcBllZl7GriylJAnPy5FpHBgXxiTp6nn8had3yM6gA8sOjG4DntNhy/Tsh96\n" +
+            "KpUTeP63pMj6mhLfzAuWzEQLmIgQX88FIraXWESrmZcYnZy9sS/DPnMhtwkmGYxl\n" +
+            "UdgcTDbUUk7Pn5wAdNiNv7swFu1ig3SYgp21opqmBtEHmbOQranJjC+nFgejyrdt\n" +
+            "qJpNW5gIixoslRlr8OLnU3uAwiNBQgIZHSsnjybALw3bv+ChfEAGBPfVIXtCPETZ\n" +
+            "9OjeQgulu5t1XepHst0rnzk9N1BWH+0=\n";
+
+    private static final String ENCRYPT_SHA1 = "a9026105b7341d4758082d9f7ae3877a4eca24b7";
+    private static final String SIGN_SHA1 = "d3b99e0032f62cc9fcff0cd660901ff3813e6e98";
+
+    /**
+     * A server holding certificates by fingerprint, counting lookups and imports.
+     */
+    private static class FakeLookup implements CertificateCache.Lookup {
+        private final Set<String> certs = new HashSet<>();
+        private int finds = 0;
+        private int uploads = 0;
+
+        @Override
+        public String find(String fingerprint) {
+            finds++;
+            return certs.contains(fingerprint) ? CertificateCache.href(fingerprint) : null;
+        }
+
+        @Override
+        public String upload(String fingerprint, JsonNode certificate) {
+            uploads++;
+            assertEquals(fingerprint, CertificateCache.fingerprint(certificate));
+            certs.add(fingerprint);
+            return CertificateCache.href(fingerprint);
+        }
+    }
+
+    private static String connection(String name) {
+        return "- operation: add\n"+
+               "  connection: "+name+"\n"+
+               "  type: as2\n"+
+               "  accept:\n"+
+               "    partnerEncryptionCert:\n"+
+               "      certificate: |-\n"+
+               ENCRYPT.replaceAll("(?m)^", "        ")+
+               "    partnerSigningCert:\n"+
+               "      certificate: |-\n"+
+               SIGN.replaceAll("(?m)^", "        ");
+    }
+
+    @Test
+    public void testFingerprint() {
+        assertEquals(ENCRYPT_SHA1, CertificateCache.fingerprint(TextNode.valueOf(ENCRYPT)));
+        assertEquals(SIGN_SHA1, CertificateCache.fingerprint(TextNode.valueOf(SIGN)));
+        assertEquals(SIGN_SHA1, CertificateCache.fingerprint(TextNode.valueOf(SIGN.replace("\n", ""))));
+        assertNull(CertificateCache.fingerprint(TextNode.valueOf("not a certificate")));
+    }
+
+    @Test
+    public void testOnlyAddAndUpdateAreLinked() {
+        ObjectNode request = ActionRunner.requests(connection("one")).get(0);
+        assertTrue(CertificateCache.links(request, null));
+        request.put("operation", "update");
+        assertTrue(CertificateCache.links(request, null));
+        request.put("operation", "delete");
+        assertFalse(CertificateCache.links(request, Operation.add));
+        request.remove("operation");
+        assertFalse(CertificateCache.links(request, Operation.list));
+    }
+
+    @Test
+    public void testRewriteResolvesEachCertificateOnce() {
+        FakeLookup lookup = new FakeLookup();
+        lookup.certs.add(ENCRYPT_SHA1);
+        List<ObjectNode> requests = ActionRunner.requests(connection("one")+connection("two")+connection("three"));
+        CertificateCache cache = new CertificateCache(null);
+        int replaced = 0;
+        for (ObjectNode request : requests) {
+            replaced += cache.rewrite(request, lookup);
+        }
+        assertEquals(6, replaced);
+        for (ObjectNode request : requests) {
+            assertEquals("/api/certs/"+ENCRYPT_SHA1, request.at("/accept/partnerEncryptionCert/href").asText());
+            assertEquals("/api/certs/"+SIGN_SHA1, request.at("/accept/partnerSigningCert/href").asText());
+        }
+        // one lookup for each certificate, and one import for the certificate not yet in Harmony
+        assertEquals(2, lookup.finds);
+        assertEquals(1, lookup.uploads);
+    }
+
+    @Test
+    public void testSharedCacheRemembersResolvedCertificates() {
+        FakeLookup lookup = new FakeLookup();
+        lookup.certs.add(SIGN_SHA1);
+        CertificateCache shared = CertificateCache.shared("https://"+UUID.randomUUID()+":6080");
+        assertEquals(2, new CertificateCache(shared).rewrite(ActionRunner.requests(connection("one")).get(0), lookup));
+        assertEquals(2, new CertificateCache(shared).rewrite(ActionRunner.requests(connection("two")).get(0), lookup));
+        // the second batch looks up and imports nothing
+        assertEquals(2, lookup.finds);
+        assertEquals(1, lookup.uploads);
+    }
+
+    @Test
+    public void testFailedImportIsLeftInPlace() {
+        FakeLookup lookup = new FakeLookup() {
+            @Override
+            public String upload(String fingerprint, JsonNode certificate) {
+                super.upload(fingerprint, certificate);
+                return null;
+            }
+        };
+        CertificateCache cache = new CertificateCache(null);
+        ObjectNode request = ActionRunner.requests(connection("one")).get(0);
+        assertEquals(0, cache.rewrite(request, lookup));
+        assertEquals(0, cache.rewrite(ActionRunner.requests(connection("two")).get(0), lookup));
+        assertTrue(request.at("/accept/partnerEncryptionCert").has("certificate"));
+        assertEquals(2, lookup.uploads);
+    }
+}
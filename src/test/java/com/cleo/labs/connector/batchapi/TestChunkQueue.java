@@ -0,0 +1,139 @@
+package com.cleo.labs.connector.batchapi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.OutputFormat;
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class TestChunkQueue {
+
+    private Path workdir;
+
+    @Before
+    public void setup() throws IOException {
+        workdir = Files.createTempDirectory("chunks");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        ChunkQueue.jobs(workdir).forEach(job -> {
+            try {
+                job.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        });
+        Files.walk(workdir).sorted(Collections.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+
+    private static final String YAML =
+            "- authenticator: Users\n  operation: add\n" +
+            "- username: alice\n  authenticator: Users\n" +
+            "- connection: partner\n" +
+            "- username: carol\n  authenticator: Other\n" +
+            "- username: bob\n  authenticator: Users\n";
+
+    @Test
+    public void testUsersWaitForTheirAuthenticator() throws IOException {
+        ChunkQueue.Plan plan = ChunkQueue.requests(ActionRunner.requests(YAML), 2, null, ResultWriter.YAML, "");
+        assertEquals(3, plan.size());
+        assertEquals(Collections.emptySet(), plan.after(0));
+        assertEquals(Collections.emptySet(), plan.after(1));
+        assertEquals(Collections.singleton(0), plan.after(2));
+        assertNull(ChunkQueue.requests(ActionRunner.requests(YAML), 5, null, ResultWriter.YAML, ""));
+    }
+
+    @Test
+    public void testOtherOperationsWaitForThePreviousChunk() throws IOException {
+        String yaml = YAML + "- username: alice\n  operation: delete\n";
+        ChunkQueue.Plan plan = ChunkQueue.requests(ActionRunner.requests(yaml), 2, null, ResultWriter.YAML, "");
+        assertEquals(3, plan.size());
+        assertEquals(Collections.emptySet(), plan.after(0));
+        assertEquals(Collections.singleton(0), plan.after(1));
+        assertTrue(plan.after(2).contains(1));
+        plan = ChunkQueue.requests(ActionRunner.requests(YAML), 2, Operation.update, ResultWriter.YAML, "");
+        assertTrue(plan.after(2).contains(1));
+        String csv = "Host,UserID,operation\nUsers,alice,\nOther,bob,\nUsers,carol,delete\n";
+        assertEquals(Collections.singleton(0), ChunkQueue.csv(csv, 1, null, "").after(1));
+    }
+
+    @Test
+    public void testCsvRowsKeepQuotedLinesAndHosts() {
+        String csv = "Host,UserID,Note\n" +
+                "Users,alice,\"two\nlines\"\n" +
+                "Users,bob,x\n" +
+                "Other,carol,y\n" +
+                "Users,dave,z\n";
+        ChunkQueue.Plan plan = ChunkQueue.csv(csv, 2, null, "# priority: 5\n");
+        assertEquals(2, plan.size());
+        assertEquals("# priority: 5\nHost,UserID,Note\nUsers,alice,\"two\nlines\"\nUsers,bob,x\n", plan.chunk(0));
+        assertEquals(Collections.singleton(0), plan.after(1));
+        assertEquals(Arrays.asList("a", "b,\"c\"", ""), ChunkQueue.fields("a,\"b,\"\"c\"\"\",\r\n"));
+    }
+
+    @Test
+    public void testExpiredLeaseIsTakenOverAndMergedInOrder() throws Exception {
+        ChunkQueue.Plan plan = ChunkQueue.requests(ActionRunner.requests(YAML), 2, null, ResultWriter.YAML, "");
+        Path output = workdir.resolve("users.json");
+        ChunkQueue.Processor processor = (name, content, result, log) -> {
+            JsonNode first = ActionRunner.requests(content).get(0);
+            String object = first.path("username").asText(first.path("connection").asText(
+                    first.path("authenticator").asText()));
+            Files.write(result, ("[{\"first\":\""+object+"\"}]").getBytes(StandardCharsets.UTF_8));
+        };
+        try (ChunkQueue.Job job = ChunkQueue.create(workdir, "users.yaml", plan, OutputFormat.json, false,
+                output, null)) {
+            // a node claims the first chunk and crashes
+            ChunkQueue.Lease crashed = job.claim();
+            assertEquals(0, crashed.index());
+            ChunkQueue.Lease second = job.claim();
+            assertEquals(1, second.index());
+            assertNull(job.claim()); // the third chunk waits for the first
+            job.process(second, processor);
+            assertNull(job.claim());
+
+            Path dir;
+            try (Stream<Path> dirs = Files.list(workdir.resolve(ChunkQueue.DIRECTORY))) {
+                dir = dirs.findFirst().get();
+            }
+            assertTrue(Files.exists(dir.resolve("00000.yaml")));
+            assertFalse(Files.exists(dir.resolve("00001.yaml"))); // removed once committed
+            if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir)));
+                assertEquals("rw-------",
+                        PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.resolve("00000.yaml"))));
+            }
+            Files.setLastModifiedTime(dir.resolve("00000.lease.1"),
+                    FileTime.fromMillis(System.currentTimeMillis()-2*ChunkQueue.EXPIRY));
+            assertFalse(job.abandoned());
+            ChunkQueue.Lease retry = job.claim();
+            assertEquals(0, retry.index());
+            assertFalse(crashed.current());
+            job.process(retry, processor);
+            job.process(job.claim(), processor);
+            assertTrue(job.done());
+            job.merge();
+        }
+        JsonNode merged = ResultWriter.JSON.readTree(output.toFile());
+        assertEquals(3, merged.size());
+        assertEquals("Users", merged.get(0).path("first").asText());
+        assertEquals("partner", merged.get(1).path("first").asText());
+        assertEquals("bob", merged.get(2).path("first").asText());
+        assertTrue(ChunkQueue.jobs(workdir).isEmpty());
+    }
+}
@@ -0,0 +1,102 @@
+package com.cleo.labs.connector.batchapi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestInboxWatcher {
+
+    private Path workdir;
+    private Path inbox;
+
+    @Before
+    public void setup() throws IOException {
+        workdir = Files.createTempDirectory("inbox");
+        inbox = Files.createDirectories(workdir.resolve(InboxWatcher.INBOX));
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.walk(workdir).sorted(Collections.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+
+    private Path drop(String name, long age) throws IOException {
+        Path file = Files.write(inbox.resolve(name), "- username: alice\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()-age));
+        return file;
+    }
+
+    @Test
+    public void testSettledFilesAreClaimedAndProcessedOnce() throws IOException {
+        List<String> processed = new ArrayList<>();
+        InboxWatcher watcher = new InboxWatcher(workdir, (file, name) -> {
+            assertTrue(file.startsWith(inbox.resolve(InboxWatcher.CLAIMED)));
+            assertEquals("- username: alice\n", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            processed.add(name);
+        });
+        drop("ready.yaml", 2*InboxWatcher.SETTLE);
+        Path writing = drop("writing.yaml", 0);
+        drop(".hidden.yaml", 2*InboxWatcher.SETTLE);
+        drop("upload.part", 2*InboxWatcher.SETTLE);
+
+        assertTrue(watcher.scan());
+        assertEquals(Collections.singletonList("ready.yaml"), processed);
+        assertFalse(Files.exists(inbox.resolve("ready.yaml")));
+        assertTrue(Files.exists(writing));
+        try (Stream<Path> claimed = Files.list(inbox.resolve(InboxWatcher.CLAIMED))) {
+            assertEquals(0, claimed.count());
+        }
+
+        Files.setLastModifiedTime(writing, FileTime.fromMillis(System.currentTimeMillis()-2*InboxWatcher.SETTLE));
+        assertFalse(watcher.scan());
+        assertEquals(2, processed.size());
+        assertEquals("writing.yaml", processed.get(1));
+    }
+
+    @Test
+    public void testFailedFilesAreMovedAside() throws IOException {
+        InboxWatcher watcher = new InboxWatcher(workdir, (file, name) -> {
+            throw new IOException("failed");
+        });
+        drop("bad.yaml", 2*InboxWatcher.SETTLE);
+        assertFalse(watcher.scan());
+        try (Stream<Path> claimed = Files.list(inbox.resolve(InboxWatcher.CLAIMED))) {
+            assertEquals(0, claimed.count());
+        }
+        try (Stream<Path> failed = Files.list(inbox.resolve(InboxWatcher.FAILED))) {
+            assertTrue(failed.findFirst().get().getFileName().toString().endsWith("-bad.yaml"));
+        }
+    }
+
+    @Test
+    public void testExpiredClaimsAreProcessedAgain() throws IOException {
+        List<String> processed = new ArrayList<>();
+        InboxWatcher watcher = new InboxWatcher(workdir, (file, name) -> processed.add(name));
+        Path claimed = Files.createDirectories(inbox.resolve(InboxWatcher.CLAIMED));
+        long crashed = System.currentTimeMillis()-2*ChunkQueue.EXPIRY;
+        Path expired = Files.write(claimed.resolve(crashed+"-"+UUID.randomUUID()+"-lost.yaml"),
+                "- username: alice\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(expired, FileTime.fromMillis(crashed));
+        Path held = Files.write(claimed.resolve(System.currentTimeMillis()+"-"+UUID.randomUUID()+"-held.yaml"),
+                "- username: bob\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(held, FileTime.fromMillis(crashed));
+
+        watcher.scan();
+        assertEquals(Collections.singletonList("lost.yaml"), processed);
+        assertFalse(Files.exists(expired));
+        assertTrue(Files.exists(held));
+    }
+}
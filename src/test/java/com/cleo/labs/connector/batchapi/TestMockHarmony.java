@@ -0,0 +1,99 @@
+package com.cleo.labs.connector.batchapi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class TestMockHarmony {
+
+    private MockHarmony harmony;
+    private String token;
+
+    @Before
+    public void setup() throws IOException {
+        harmony = new MockHarmony("administrator", "Admin");
+        token = call("POST", "/api/authentication", "grant_type=password&username=administrator&password=Admin")
+                .get("access_token").getAsString();
+    }
+
+    @After
+    public void teardown() {
+        harmony.close();
+    }
+
+    private JsonObject call(String method, String path, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(harmony.url()+path).openConnection();
+        connection.setRequestMethod(method);
+        if (token != null) {
+            connection.setRequestProperty("Authorization", "Bearer "+token);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        JsonObject result = new JsonObject();
+        if (status != 204) {
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                result = new JsonParser().parse(new InputStreamReader(in, StandardCharsets.UTF_8)).getAsJsonObject();
+            }
+        }
+        result.addProperty("status", status);
+        return result;
+    }
+
+    @Test
+    public final void testCrud() throws IOException {
+        JsonObject created = call("POST", "/api/connections", "{\"alias\":\"mysftp\",\"type\":\"sftp\"}");
+        assertEquals(201, created.get("status").getAsInt());
+        String href = created.getAsJsonObject("_links").getAsJsonObject("self").get("href").getAsString();
+        assertEquals("mysftp", call("GET", href, null).get("alias").getAsString());
+        assertEquals(200, call("PUT", href, "{\"alias\":\"mysftp2\",\"type\":\"sftp\"}").get("status").getAsInt());
+        assertEquals("mysftp2", call("GET", href, null).get("alias").getAsString());
+        assertEquals(204, call("DELETE", href, null).get("status").getAsInt());
+        assertEquals(404, call("GET", href, null).get("status").getAsInt());
+    }
+
+    @Test
+    public final void testFilterAndPaging() throws IOException {
+        harmony.pageSize(2);
+        for (String alias : new String[] {"d1", "d2", "d3", "x1"}) {
+            call("POST", "/api/actions", "{\"alias\":\""+alias+"\"}");
+        }
+        String filter = URLEncoder.encode("alias sw \"d\"", "UTF-8");
+        JsonObject page = call("GET", "/api/actions?filter="+filter, null);
+        assertEquals(3, page.get("totalResults").getAsInt());
+        assertEquals(2, page.get("count").getAsInt());
+        assertTrue(page.getAsJsonObject("_links").has("next"));
+        page = call("GET", "/api/actions?filter="+filter+"&startIndex=2", null);
+        assertEquals(1, page.get("count").getAsInt());
+        assertFalse(page.getAsJsonObject("_links").has("next"));
+    }
+
+    @Test
+    public final void testAuthenticationAndErrors() throws IOException {
+        token = "wrong";
+        assertEquals(401, call("GET", "/api/users", null).get("status").getAsInt());
+        token = call("POST", "/api/authentication", "grant_type=password&username=administrator&password=Admin")
+                .get("access_token").getAsString();
+        harmony.errors(1.0, 503);
+        assertEquals(503, call("GET", "/api/users", null).get("status").getAsInt());
+        assertEquals(1, harmony.count("GET users"));
+    }
+}
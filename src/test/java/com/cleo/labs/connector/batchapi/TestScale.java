@@ -0,0 +1,262 @@
+package com.cleo.labs.connector.batchapi;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Scale tests driving the PUT path ({@link BatchAPIProcessor} write and
+ * close) with synthetic request files against a {@link MockHarmony}.
+ * <p>
+ * These run only with {@code -Dbatchapi.scale=true} (see the {@code scale}
+ * profile). Floors and ceilings may be tuned with
+ * {@code batchapi.scale.rows}, {@code batchapi.scale.minThroughputRatio},
+ * {@code batchapi.scale.minRowsPerSecond}, {@code batchapi.scale.maxHeapMB}
+ * and {@code batchapi.scale.concurrency}. The default row counts run in a
+ * few minutes; each test of {@code -Dbatchapi.scale.rows=500000} takes
+ * about 40 minutes at 200 rows/s.
+ * <p>
+ * The throughput floor is relative to a baseline measured in the same JVM:
+ * a file of {@code batchapi.scale.baselineRows} in the same format, put
+ * (after a warm-up put) against its own {@link MockHarmony}. A large file
+ * must be processed at no less than {@code minThroughputRatio} of the
+ * baseline rate, catching work that grows faster than the file. Set
+ * {@code batchapi.scale.minRowsPerSecond} for a fixed floor instead.
+ * <p>
+ * The heap ceiling applies to the live heap: the heap used right after a
+ * {@code System.gc()} at checkpoints every
+ * {@code batchapi.scale.heapCheckpointMillis} while the batch runs, and
+ * once at its end, rather than the peak usage of each pool, which includes
+ * garbage not yet collected.
+ */
+@RunWith(Parameterized.class)
+public class TestScale {
+
+    private static final String MIN_ROWS_PER_SECOND = System.getProperty("batchapi.scale.minRowsPerSecond");
+    private static final double MIN_THROUGHPUT_RATIO = Double.parseDouble(
+            System.getProperty("batchapi.scale.minThroughputRatio", "0.5"));
+    private static final int BASELINE_ROWS = Integer.getInteger("batchapi.scale.baselineRows", 2000);
+    private static final long MAX_HEAP_MB = Long.getLong("batchapi.scale.maxHeapMB", 1024L);
+    private static final int CONCURRENCY = Integer.getInteger("batchapi.scale.concurrency", 4);
+    private static final long HEAP_CHECKPOINT = Long.getLong("batchapi.scale.heapCheckpointMillis", 5000L);
+    private static final Map<String,Double> BASELINES = new ConcurrentHashMap<>();
+
+    @Parameters(name = "{0} rows {1}")
+    public static Collection<Object[]> parameters() {
+        List<Object[]> parameters = new ArrayList<>();
+        for (String rows : System.getProperty("batchapi.scale.rows", "10000,100000").split(",")) {
+            for (String format : new String[] {"csv", "yaml"}) {
+                parameters.add(new Object[] {Integer.valueOf(rows.trim()), format});
+            }
+        }
+        return parameters;
+    }
+
+    private final int rows;
+    private final String format;
+    private MockHarmony harmony;
+    private Path workingDirectory;
+    private StubConnectorConfig config;
+
+    public TestScale(int rows, String format) {
+        this.rows = rows;
+        this.format = format;
+    }
+
+    @Before
+    public void setup() throws IOException {
+        assumeTrue(Boolean.getBoolean("batchapi.scale"));
+        harmony = authenticator(new MockHarmony("administrator", "Admin"));
+        workingDirectory = Files.createTempDirectory("batchapi-scale");
+        config = new StubConnectorConfig(workingDirectory).profiles(harmony.profile("default"));
+    }
+
+    @After
+    public void teardown() throws IOException {
+        if (harmony != null) {
+            harmony.close();
+        }
+        if (workingDirectory != null) {
+            delete(workingDirectory);
+        }
+    }
+
+    private static MockHarmony authenticator(MockHarmony harmony) {
+        JsonObject users = new JsonObject();
+        users.addProperty("alias", "Users");
+        users.addProperty("type", "nativeUser");
+        harmony.put("authenticators", "users", users);
+        return harmony;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private byte[] request(int rows, String prefix) {
+        String content = format.equals("csv")
+                ? SyntheticRequests.csv(SyntheticRequests.Template.sftp, rows, 16, prefix)
+                : SyntheticRequests.yaml(rows, 16, prefix);
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void put(StubConnectorConfig config, Path workingDirectory, String name, byte[] request)
+            throws IOException {
+        BatchAPIProcessor processor = new BatchAPIProcessor(config, workingDirectory.resolve(name),
+                Collections.emptyMap(), null);
+        processor.write(request);
+        processor.close();
+    }
+
+    private void put(String name, byte[] request) throws IOException {
+        put(config, workingDirectory, name, request);
+    }
+
+    /**
+     * Returns the rows per second of a {@link #BASELINE_ROWS} file in this
+     * format, measured once per format.
+     */
+    private double baseline() throws IOException {
+        Double baseline = BASELINES.get(format);
+        if (baseline == null) {
+            Path directory = Files.createTempDirectory("batchapi-baseline");
+            try (MockHarmony mock = authenticator(new MockHarmony("administrator", "Admin"))) {
+                StubConnectorConfig baselineConfig = new StubConnectorConfig(directory)
+                        .profiles(mock.profile("default"));
+                put(baselineConfig, directory, "warmup."+format, request(BASELINE_ROWS, "warmup"));
+                byte[] request = request(BASELINE_ROWS, "baseline");
+                long start = System.nanoTime();
+                put(baselineConfig, directory, "baseline."+format, request);
+                baseline = BASELINE_ROWS / ((System.nanoTime() - start) / 1e9);
+            } finally {
+                delete(directory);
+            }
+            BASELINES.put(format, baseline);
+        }
+        return baseline;
+    }
+
+    private double floor() throws IOException {
+        return MIN_ROWS_PER_SECOND != null
+                ? Double.parseDouble(MIN_ROWS_PER_SECOND)
+                : MIN_THROUGHPUT_RATIO * baseline();
+    }
+
+    /**
+     * Tracks the largest heap in use after a full collection, at a
+     * checkpoint every {@link #HEAP_CHECKPOINT} and when closed.
+     */
+    private static class LiveHeap implements AutoCloseable {
+        private final ScheduledExecutorService checkpoints;
+        private long max;
+
+        private LiveHeap() {
+            this.max = 0;
+            this.checkpoints = Executors.newSingleThreadScheduledExecutor();
+            checkpoints.scheduleWithFixedDelay(this::checkpoint, HEAP_CHECKPOINT, HEAP_CHECKPOINT,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void checkpoint() {
+            System.gc();
+            max = Math.max(max, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+
+        @Override
+        public void close() {
+            checkpoints.shutdownNow();
+            checkpoint();
+        }
+
+        public synchronized long maxMB() {
+            return max / (1024 * 1024);
+        }
+    }
+
+    private void assertFloors(long created, long nanos, double floor, LiveHeap live) {
+        double rowsPerSecond = created / (nanos / 1e9);
+        long heap = live.maxMB();
+        assertTrue(String.format("%s %d rows: throughput %.0f rows/s below floor %.0f", format, rows,
+                rowsPerSecond, floor), rowsPerSecond >= floor);
+        assertTrue(String.format("%s %d rows: live heap %d MB above ceiling %d MB", format, rows,
+                heap, MAX_HEAP_MB), heap <= MAX_HEAP_MB);
+    }
+
+    @Test
+    public final void testPut() throws IOException {
+        byte[] request = request(rows, "obj");
+        String type = format.equals("csv") ? "connections" : "users";
+        double floor = floor();
+        LiveHeap live = new LiveHeap();
+        long start = System.nanoTime();
+        try (LiveHeap l = live) {
+            put("scale."+format, request);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(rows, harmony.size(type));
+        assertFloors(rows, elapsed, floor, live);
+    }
+
+    @Test
+    public final void testConcurrentPut() throws Exception {
+        int each = Math.max(1, rows / CONCURRENCY);
+        String type = format.equals("csv") ? "connections" : "users";
+        double floor = floor();
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        try {
+            LiveHeap live = new LiveHeap();
+            long start = System.nanoTime();
+            try (LiveHeap l = live) {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < CONCURRENCY; i++) {
+                    String name = "scale"+i+"."+format;
+                    byte[] request = request(each, "obj"+i+"_");
+                    futures.add(executor.submit(() -> {
+                        put(name, request);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            assertEquals(each * CONCURRENCY, harmony.size(type));
+            assertFloors(each * CONCURRENCY, elapsed, floor, live);
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+}